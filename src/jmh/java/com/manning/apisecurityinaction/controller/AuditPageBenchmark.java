@@ -0,0 +1,93 @@
+package com.manning.apisecurityinaction.controller;
+
+import com.manning.apisecurityinaction.token.Base64URL;
+import com.manning.apisecurityinaction.token.StubRequests;
+import org.dalesbred.Database;
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.json.JSONArray;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import spark.Request;
+import spark.Response;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of one {@code GET /logs} page from the start, middle and end of a day partition
+ * holding a few million audit rows. Pages are found by keyset on {@code (audit_time, audit_id)},
+ * so all three should cost the same; an OFFSET-style query would grow with the depth. Setup
+ * fills the table with a single INSERT ... SELECT, which takes a while.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class AuditPageBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class AuditLog {
+        @Param({"2000000"})
+        public int rows;
+
+        @Param({"first", "middle", "last"})
+        public String page;
+
+        AuditController auditController;
+        Request request;
+        Response response;
+
+        @Setup
+        public void setUp() throws Exception {
+            final var database = Database.forDataSource(
+                    JdbcConnectionPool.create("jdbc:h2:mem:audit-" + page + ";DB_CLOSE_DELAY=-1", "natter", "password"));
+            final var schema = Paths.get(AuditPageBenchmark.class.getResource("/schema.sql").toURI());
+            database.update(Files.readString(schema));
+
+            // One row every 20ms from the start of yesterday keeps two million rows in one day
+            final var day = LocalDate.now(ZoneOffset.UTC).minusDays(1).atStartOfDay().toInstant(ZoneOffset.UTC);
+            final var partitions = new AuditPartitions(database, Duration.ofDays(30));
+            final var table = partitions.tableFor(day);
+            database.update("INSERT INTO " + table + " " +
+                    "SELECT x, 'GET', '/spaces/1/messages', 'user' || MOD(x, 1000), 200, " +
+                    "DATEADD('MILLISECOND', x * 20, ?), 1000000 FROM SYSTEM_RANGE(0, ?)",
+                    Timestamp.from(day), rows - 1);
+
+            final var position = page.equals("first") ? 0 : page.equals("middle") ? rows / 2 : rows - 40;
+            final var cursorRow = database.findUnique(Timestamp.class,
+                    "SELECT audit_time FROM " + table + " WHERE audit_id = ?", position);
+            final var cursor = Base64URL.encode((cursorRow.toInstant() + "/" + position)
+                    .getBytes(StandardCharsets.UTF_8));
+
+            final var auditIds = IdAllocator.fromSystemProperties(database, "audit_id_seq");
+            auditController = new AuditController(database,
+                    new AuditWriter(database, auditIds, partitions, AuditWriter.Durability.SYNC,
+                            1024, 100, Duration.ofSeconds(1)),
+                    partitions, new AuditRollups());
+            request = StubRequests.newRequest("/logs", Map.of("since", day.toString(), "cursor", cursor));
+            response = StubRequests.newResponse();
+        }
+    }
+
+    @Benchmark
+    public JSONArray readPage(final AuditLog auditLog) {
+        return auditLog.auditController.readAuditLog(auditLog.request, auditLog.response);
+    }
+}
@@ -0,0 +1,91 @@
+package com.manning.apisecurityinaction.controller;
+
+import com.manning.apisecurityinaction.token.StubRequests;
+import org.dalesbred.Database;
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import spark.Request;
+import spark.Response;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Logins per second through {@link UserController#authenticate} for a client repeating the same
+ * Basic credentials, with and without a {@link CredentialCache}. Without the cache every request
+ * pays for an scrypt check on the hashing pool; with it only the first does. Four threads
+ * contend so the pool's queueing shows up in the uncached case.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class AuthenticationBenchmark {
+
+    private static final String USERNAME = "benchmark";
+    private static final String PASSWORD = "correct horse battery staple";
+
+    @State(Scope.Benchmark)
+    public static class Users {
+        @Param({"uncached", "cached"})
+        public String credentials;
+
+        UserController userController;
+        Response response;
+        Map<String, String> headers;
+
+        @Setup
+        public void setUp() throws Exception {
+            final var database = Database.forDataSource(
+                    JdbcConnectionPool.create("jdbc:h2:mem:auth-" + credentials + ";DB_CLOSE_DELAY=-1",
+                            "natter", "password"));
+            final var schema = Paths.get(AuthenticationBenchmark.class.getResource("/schema.sql").toURI());
+            database.update(Files.readString(schema));
+
+            final var passwordHasher = PasswordHasher.fromSystemProperties();
+            database.update("INSERT INTO users(user_id, pw_hash) VALUES(?, ?)",
+                    USERNAME, passwordHasher.hash(PASSWORD));
+
+            final var permissionCache = new PermissionCache(database, 1000, Duration.ofMinutes(1));
+            userController = "cached".equals(credentials)
+                    ? new UserController(database, passwordHasher, permissionCache,
+                            new CredentialCache(1000, Duration.ofMinutes(5)))
+                    : new UserController(database, passwordHasher, permissionCache);
+            response = StubRequests.newResponse();
+
+            final var basic = Base64.getEncoder()
+                    .encodeToString((USERNAME + ":" + PASSWORD).getBytes(StandardCharsets.UTF_8));
+            headers = Map.of("Authorization", "Basic " + basic);
+        }
+    }
+
+    @Benchmark
+    public Object authenticate(final Users users) {
+        final Request request = StubRequests.newRequest(users.headers);
+        users.userController.authenticate(request, users.response);
+
+        final var subject = request.attribute("subject");
+        if (subject == null) {
+            throw new IllegalStateException("authentication failed");
+        }
+        return subject;
+    }
+}
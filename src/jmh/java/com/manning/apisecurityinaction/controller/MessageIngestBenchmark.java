@@ -0,0 +1,98 @@
+package com.manning.apisecurityinaction.controller;
+
+import com.manning.apisecurityinaction.token.StubRequests;
+import org.dalesbred.Database;
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import spark.Request;
+import spark.Response;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Messages per second through {@link SpaceController#postMessage}, one request per message,
+ * against {@link SpaceController#postMessages} with the same messages in one batch. Both go
+ * straight to the controller, so filters such as rate limiting and permission checks, which
+ * the batch route also saves, are not measured.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageIngestBenchmark {
+
+    private static final int BATCH_SIZE = 100;
+
+    @State(Scope.Benchmark)
+    public static class Controller {
+        SpaceController spaceController;
+        Response response;
+        String single;
+        String batch;
+
+        @Setup
+        public void setUp() throws Exception {
+            final var database = Database.forDataSource(
+                    JdbcConnectionPool.create("jdbc:h2:mem:ingest;DB_CLOSE_DELAY=-1", "natter", "password"));
+            final var schema = Paths.get(MessageIngestBenchmark.class.getResource("/schema.sql").toURI());
+            database.update(Files.readString(schema));
+            database.update("INSERT INTO spaces(space_id, name, owner) VALUES(1, 'benchmark', 'benchmark')");
+
+            spaceController = new SpaceController(database,
+                    IdAllocator.fromSystemProperties(database, "space_id_seq"),
+                    IdAllocator.fromSystemProperties(database, "msg_id_seq"),
+                    new PermissionCache(database, 1000, Duration.ofMinutes(1)),
+                    new MessageCache(64L * 1024 * 1024),
+                    new SpaceVersions(),
+                    new MessageBroker(64));
+            response = StubRequests.newResponse();
+
+            final var message = new JSONObject()
+                    .put("author", "benchmark")
+                    .put("message", "A message of typical length posted by a bot into a busy space.");
+            single = message.toString();
+            final var messages = new JSONArray();
+            for (var i = 0; i < BATCH_SIZE; i++) {
+                messages.put(message);
+            }
+            batch = messages.toString();
+        }
+
+        Request request(final String matchUri, final String requestUri, final String body) {
+            return StubRequests.newRequest(matchUri, requestUri, body.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void singleMessages(final Controller controller) {
+        for (var i = 0; i < BATCH_SIZE; i++) {
+            controller.spaceController.postMessage(controller.request(
+                    "/spaces/:spaceId/messages", "/spaces/1/messages", controller.single), controller.response);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public JSONObject batch(final Controller controller) {
+        return controller.spaceController.postMessages(controller.request(
+                "/spaces/:spaceId/messages/batch", "/spaces/1/messages/batch", controller.batch), controller.response);
+    }
+}
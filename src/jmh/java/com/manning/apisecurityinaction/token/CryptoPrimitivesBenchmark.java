@@ -0,0 +1,115 @@
+package com.manning.apisecurityinaction.token;
+
+import com.nimbusds.jose.EncryptionMethod;
+import com.nimbusds.jose.JWEAlgorithm;
+import com.nimbusds.jose.JWEHeader;
+import com.nimbusds.jose.crypto.DirectDecrypter;
+import com.nimbusds.jose.crypto.DirectEncrypter;
+import com.nimbusds.jwt.EncryptedJWT;
+import com.nimbusds.jwt.JWTClaimsSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-call construction of {@link Mac}, {@link MessageDigest} and JWE crypters compared with
+ * the pooled or shared instances the token stores now use.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class CryptoPrimitivesBenchmark {
+
+    private final byte[] input = "Zk3pQ8nVw0bYc1uT7sLr2aXe5gHj".getBytes(StandardCharsets.UTF_8);
+    private SecretKeySpec macKey;
+    private SecretKeySpec encKey;
+    private ObjectPool<Mac> macs;
+    private ObjectPool<MessageDigest> digests;
+    private DirectDecrypter sharedDecrypter;
+    private String jwe;
+
+    @Setup
+    public void setUp() throws Exception {
+        final var keyBytes = new byte[32];
+        new SecureRandom().nextBytes(keyBytes);
+        macKey = new SecretKeySpec(keyBytes, "HmacSHA256");
+        encKey = new SecretKeySpec(keyBytes, "AES");
+        macs = new ObjectPool<>(() -> {
+            try {
+                final var mac = Mac.getInstance("HmacSHA256");
+                mac.init(macKey);
+                return mac;
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }, 16);
+        digests = new ObjectPool<>(() -> {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }, 16);
+        sharedDecrypter = new DirectDecrypter(encKey);
+
+        final var jwt = new EncryptedJWT(new JWEHeader(JWEAlgorithm.DIR, EncryptionMethod.A128CBC_HS256),
+                new JWTClaimsSet.Builder().subject("benchmark").build());
+        jwt.encrypt(new DirectEncrypter(encKey));
+        jwe = jwt.serialize();
+    }
+
+    @Benchmark
+    public byte[] hmacPerCall() throws Exception {
+        final var mac = Mac.getInstance("HmacSHA256");
+        mac.init(macKey);
+        return mac.doFinal(input);
+    }
+
+    @Benchmark
+    public byte[] hmacPooled() {
+        return macs.apply(mac -> mac.doFinal(input));
+    }
+
+    @Benchmark
+    public byte[] sha256PerCall() throws Exception {
+        return MessageDigest.getInstance("SHA-256").digest(input);
+    }
+
+    @Benchmark
+    public byte[] sha256Pooled() {
+        return digests.apply(digest -> digest.digest(input));
+    }
+
+    @Benchmark
+    public JWTClaimsSet jweDecryptPerCall() throws Exception {
+        final var jwt = EncryptedJWT.parse(jwe);
+        jwt.decrypt(new DirectDecrypter(encKey));
+        return jwt.getJWTClaimsSet();
+    }
+
+    @Benchmark
+    public JWTClaimsSet jweDecryptShared() throws Exception {
+        final var jwt = EncryptedJWT.parse(jwe);
+        jwt.decrypt(sharedDecrypter);
+        return jwt.getJWTClaimsSet();
+    }
+}
@@ -0,0 +1,79 @@
+package com.manning.apisecurityinaction.token;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lookup cost in a {@link RevocationList} holding a million revoked IDs spread over ten minutes
+ * of expiry, for both revoked and unrevoked tokens. The retained heap of the filled list is
+ * printed during setup.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = "-Xmx2g")
+@State(Scope.Benchmark)
+public class RevocationListBenchmark {
+
+    @Param("1000000")
+    public int revoked;
+
+    private RevocationList revocationList;
+    private String revokedId;
+    private String liveId;
+    private Instant expiry;
+
+    @Setup
+    public void setUp() {
+        final var random = new SecureRandom();
+        final var now = Instant.now();
+        final var runtime = Runtime.getRuntime();
+        System.gc();
+        final var before = runtime.totalMemory() - runtime.freeMemory();
+
+        revocationList = new RevocationList(Duration.ofDays(1), Duration.ofMinutes(1), null);
+        final var bytes = new byte[16];
+        for (var i = 0; i < revoked; i++) {
+            random.nextBytes(bytes);
+            final var id = Base64URL.encode(bytes);
+            final var tokenExpiry = now.plusSeconds(60 + i % 600);
+            revocationList.revoke(id, tokenExpiry);
+            if (i == revoked / 2) {
+                revokedId = id;
+                expiry = tokenExpiry;
+            }
+        }
+        random.nextBytes(bytes);
+        liveId = Base64URL.encode(bytes);
+
+        System.gc();
+        final var after = runtime.totalMemory() - runtime.freeMemory();
+        System.out.printf("%nRevocation list with %d entries retains ~%d MiB (%d bytes/entry)%n",
+                revoked, (after - before) >> 20, (after - before) / revoked);
+    }
+
+    @Benchmark
+    public boolean lookupRevoked() {
+        return revocationList.isRevoked(revokedId, expiry);
+    }
+
+    @Benchmark
+    public boolean lookupLive() {
+        return revocationList.isRevoked(liveId, expiry);
+    }
+}
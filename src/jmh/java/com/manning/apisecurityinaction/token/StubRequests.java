@@ -0,0 +1,216 @@
+package com.manning.apisecurityinaction.token;
+
+import spark.Request;
+import spark.RequestResponseFactory;
+import spark.Response;
+import spark.routematch.RouteMatch;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Builds {@link Request}s backed by a dynamic-proxy servlet request, with just enough session
+ * support for {@link CookieTokenStore} or a body and route match for controllers, and a
+ * {@link Response} that discards everything. Everything else answers with a default value.
+ */
+public final class StubRequests {
+
+    private StubRequests() {
+    }
+
+    public static Request newRequest() {
+        final var session = new HttpSession[1];
+        final var servletRequest = (HttpServletRequest) Proxy.newProxyInstance(
+                StubRequests.class.getClassLoader(),
+                new Class<?>[]{HttpServletRequest.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("getSession")) {
+                        final var create = args == null || (Boolean) args[0];
+                        if (session[0] == null && create) {
+                            session[0] = newSession(() -> session[0] = null);
+                        }
+                        return session[0];
+                    }
+                    return defaultValue(method.getReturnType());
+                });
+
+        return RequestResponseFactory.create(servletRequest);
+    }
+
+    /**
+     * A request with the given headers whose attributes, such as the authenticated
+     * {@code subject}, are kept so a filter's result can be read back.
+     */
+    public static Request newRequest(final Map<String, String> headers) {
+        final Map<String, Object> attributes = new ConcurrentHashMap<>();
+        final var servletRequest = (HttpServletRequest) Proxy.newProxyInstance(
+                StubRequests.class.getClassLoader(),
+                new Class<?>[]{HttpServletRequest.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getHeader":
+                            return headers.get((String) args[0]);
+                        case "getAttribute":
+                            return attributes.get((String) args[0]);
+                        case "setAttribute":
+                            attributes.put((String) args[0], args[1]);
+                            return null;
+                        case "removeAttribute":
+                            attributes.remove((String) args[0]);
+                            return null;
+                        default:
+                            return defaultValue(method.getReturnType());
+                    }
+                });
+
+        return RequestResponseFactory.create(servletRequest);
+    }
+
+    /**
+     * A request for {@code path} with the given query parameters.
+     */
+    public static Request newRequest(final String path, final Map<String, String> queryParams) {
+        final var servletRequest = (HttpServletRequest) Proxy.newProxyInstance(
+                StubRequests.class.getClassLoader(),
+                new Class<?>[]{HttpServletRequest.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getParameter":
+                            return queryParams.get((String) args[0]);
+                        case "getPathInfo":
+                        case "getRequestURI":
+                            return path;
+                        default:
+                            return defaultValue(method.getReturnType());
+                    }
+                });
+
+        return RequestResponseFactory.create(servletRequest);
+    }
+
+    /**
+     * A request for {@code requestUri} matched against the route {@code matchUri}, so
+     * {@code params} work, whose body can be read any number of times.
+     */
+    public static Request newRequest(final String matchUri, final String requestUri, final byte[] body) {
+        final var servletRequest = (HttpServletRequest) Proxy.newProxyInstance(
+                StubRequests.class.getClassLoader(),
+                new Class<?>[]{HttpServletRequest.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getInputStream":
+                            return newInputStream(body);
+                        case "getRequestURI":
+                            return requestUri;
+                        case "getContentLength":
+                            return body.length;
+                        case "getContentLengthLong":
+                            return (long) body.length;
+                        default:
+                            return defaultValue(method.getReturnType());
+                    }
+                });
+
+        return RequestResponseFactory.create(new RouteMatch(null, matchUri, requestUri, "*/*"), servletRequest);
+    }
+
+    public static Response newResponse() {
+        return RequestResponseFactory.create((HttpServletResponse) Proxy.newProxyInstance(
+                StubRequests.class.getClassLoader(),
+                new Class<?>[]{HttpServletResponse.class},
+                (proxy, method, args) -> defaultValue(method.getReturnType())));
+    }
+
+    private static ServletInputStream newInputStream(final byte[] body) {
+        final var in = new ByteArrayInputStream(body);
+        return new ServletInputStream() {
+            @Override
+            public boolean isFinished() {
+                return in.available() == 0;
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setReadListener(final ReadListener readListener) {
+                // The whole body is already in memory, so it is available at once
+                try {
+                    if (!isFinished()) {
+                        readListener.onDataAvailable();
+                    }
+                    readListener.onAllDataRead();
+                } catch (IOException e) {
+                    readListener.onError(e);
+                }
+            }
+
+            @Override
+            public int read() {
+                return in.read();
+            }
+
+            @Override
+            public int read(final byte[] bytes, final int offset, final int length) {
+                return in.read(bytes, offset, length);
+            }
+        };
+    }
+
+    private static HttpSession newSession(final Runnable onInvalidate) {
+        final var id = UUID.randomUUID().toString();
+        final Map<String, Object> attributes = new ConcurrentHashMap<>();
+
+        return (HttpSession) Proxy.newProxyInstance(
+                StubRequests.class.getClassLoader(),
+                new Class<?>[]{HttpSession.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getId":
+                            return id;
+                        case "getAttribute":
+                            return attributes.get((String) args[0]);
+                        case "setAttribute":
+                            attributes.put((String) args[0], args[1]);
+                            return null;
+                        case "removeAttribute":
+                            attributes.remove((String) args[0]);
+                            return null;
+                        case "getAttributeNames":
+                            return Collections.enumeration(attributes.keySet());
+                        case "invalidate":
+                            attributes.clear();
+                            onInvalidate.run();
+                            return null;
+                        default:
+                            return defaultValue(method.getReturnType());
+                    }
+                });
+    }
+
+    private static Object defaultValue(final Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == int.class) {
+            return 0;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,207 @@
+package com.manning.apisecurityinaction.token;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.crypto.MACSigner;
+import com.nimbusds.jose.crypto.MACVerifier;
+import org.dalesbred.Database;
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import software.pando.crypto.nacl.SecretBox;
+import spark.Request;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Throughput of create, read (valid, tampered and expired tokens) and revoke for each token
+ * store, single-threaded and with eight contending threads. Run with {@code -prof gc} (the
+ * default in the benchmark profile) to get allocation rates. The length of each store's tokens
+ * is printed during setup.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TokenStoreBenchmark {
+
+    private static final AtomicInteger DATABASE_COUNT = new AtomicInteger();
+
+    @State(Scope.Benchmark)
+    public static class Stores {
+        @Param({"cookie", "database", "caching-database", "hmac-database", "encrypted-database",
+                "json", "hmac-json", "encrypted-json", "signed-jwt", "encrypted-jwt", "binary"})
+        public String store;
+
+        TokenStore tokenStore;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            final var random = new SecureRandom();
+            final var keyBytes = new byte[32];
+            random.nextBytes(keyBytes);
+            final var hmacKey = new SecretKeySpec(keyBytes, "HmacSHA256");
+            final var naclKey = SecretBox.key();
+            final var revocationList = new RevocationList(Duration.ofDays(1), Duration.ofMinutes(1), null);
+
+            switch (store) {
+                case "cookie":
+                    tokenStore = new CookieTokenStore();
+                    break;
+                case "database":
+                    tokenStore = DatabaseTokenStore.fromSystemProperties(newDatabase());
+                    break;
+                case "caching-database":
+                    tokenStore = CachingTokenStore.fromSystemProperties(DatabaseTokenStore.fromSystemProperties(newDatabase()));
+                    break;
+                case "hmac-database":
+                    tokenStore = HmacTokenStore.wrap(DatabaseTokenStore.fromSystemProperties(newDatabase()), hmacKey);
+                    break;
+                case "encrypted-database":
+                    tokenStore = new EncryptedTokenStore(DatabaseTokenStore.fromSystemProperties(newDatabase()), naclKey);
+                    break;
+                case "json":
+                    tokenStore = new JsonTokenStore(revocationList);
+                    break;
+                case "hmac-json":
+                    tokenStore = HmacTokenStore.wrap(new JsonTokenStore(revocationList), hmacKey);
+                    break;
+                case "encrypted-json":
+                    tokenStore = new EncryptedTokenStore(new JsonTokenStore(revocationList), naclKey);
+                    break;
+                case "signed-jwt":
+                    tokenStore = signedJwtStore(keyBytes, revocationList);
+                    break;
+                case "encrypted-jwt":
+                    tokenStore = new EncryptedJwtToeknStore(new SecretKeySpec(keyBytes, "AES"),
+                            CachingTokenStore.fromSystemProperties(DatabaseTokenStore.fromSystemProperties(newDatabase())));
+                    break;
+                case "binary":
+                    tokenStore = new BinaryTokenStore(naclKey, revocationList);
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown store: " + store);
+            }
+        }
+
+        private static TokenStore signedJwtStore(final byte[] key, final RevocationList revocationList)
+                throws JOSEException {
+            return new SignedJwtTokenStore(new MACSigner(key), new MACVerifier(key), JWSAlgorithm.HS256,
+                    "https://localhost:4567", revocationList);
+        }
+
+        private static Database newDatabase() throws IOException, URISyntaxException {
+            final var url = "jdbc:h2:mem:bench" + DATABASE_COUNT.incrementAndGet() + ";DB_CLOSE_DELAY=-1";
+            final var database = Database.forDataSource(JdbcConnectionPool.create(url, "natter", "password"));
+            final var schema = Paths.get(TokenStoreBenchmark.class.getResource("/schema.sql").toURI());
+            database.update(Files.readString(schema));
+
+            return database;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Tokens {
+        Request request;
+        String valid;
+        String tampered;
+        String expired;
+
+        @Setup(Level.Trial)
+        public void setUp(final Stores stores) {
+            request = StubRequests.newRequest();
+            expired = stores.tokenStore.create(request, newToken(Instant.now().minus(1, ChronoUnit.MINUTES)));
+            valid = stores.tokenStore.create(request, newToken(Instant.now().plus(1, ChronoUnit.HOURS)));
+            final var last = valid.charAt(valid.length() - 1);
+            tampered = valid.substring(0, valid.length() - 1) + (last == 'A' ? 'B' : 'A');
+            System.out.printf("%n%s token length: %d characters%n", stores.store, valid.length());
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Revocable {
+        Request request;
+        String tokenId;
+
+        @Setup(Level.Invocation)
+        public void setUp(final Stores stores) {
+            request = StubRequests.newRequest();
+            tokenId = stores.tokenStore.create(request, newToken(Instant.now().plus(1, ChronoUnit.HOURS)));
+        }
+    }
+
+    private static TokenStore.Token newToken(final Instant expiry) {
+        final var token = new TokenStore.Token(expiry, "benchmark");
+        token.getAttributes().put("scope", "read write");
+
+        return token;
+    }
+
+    private static Optional<TokenStore.Token> read(final Stores stores, final Tokens tokens, final String tokenId) {
+        try {
+            return stores.tokenStore.read(tokens.request, tokenId);
+        } catch (RuntimeException e) {
+            return Optional.empty();
+        }
+    }
+
+    @Benchmark
+    public String create(final Stores stores, final Tokens tokens) {
+        return stores.tokenStore.create(tokens.request, newToken(Instant.now().plus(1, ChronoUnit.HOURS)));
+    }
+
+    @Benchmark
+    public Optional<TokenStore.Token> readValid(final Stores stores, final Tokens tokens) {
+        return read(stores, tokens, tokens.valid);
+    }
+
+    @Benchmark
+    public Optional<TokenStore.Token> readTampered(final Stores stores, final Tokens tokens) {
+        return read(stores, tokens, tokens.tampered);
+    }
+
+    @Benchmark
+    public Optional<TokenStore.Token> readExpired(final Stores stores, final Tokens tokens) {
+        return read(stores, tokens, tokens.expired);
+    }
+
+    @Benchmark
+    public void revoke(final Stores stores, final Revocable revocable) {
+        stores.tokenStore.revoke(revocable.request, revocable.tokenId);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public String createContended(final Stores stores, final Tokens tokens) {
+        return create(stores, tokens);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Optional<TokenStore.Token> readValidContended(final Stores stores, final Tokens tokens) {
+        return readValid(stores, tokens);
+    }
+}
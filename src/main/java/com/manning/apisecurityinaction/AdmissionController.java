@@ -0,0 +1,127 @@
+package com.manning.apisecurityinaction;
+
+import org.json.JSONObject;
+import spark.Request;
+import spark.Response;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static spark.Spark.halt;
+
+/**
+ * Limits the number of requests in flight, adapting the limit to observed handler latency with
+ * AIMD over sampling windows of {@code natter.admission.windowMillis}. Only successful (2xx),
+ * non-OPTIONS responses are sampled, so cheap rejections and errors do not drag the baseline
+ * down. At the end of each window its mean latency is compared with a slowly smoothed baseline
+ * of earlier windows: if it is more than {@code tolerance} times the baseline the limit is cut by
+ * {@code backoff}, otherwise it grows by one, so the limit changes at most once per window.
+ * Requests record their latency with atomics; only the thread that closes a window updates the
+ * limit.
+ */
+public class AdmissionController {
+
+    private static final String ADMITTED_AT = "admission_start";
+    private static final int MIN_WINDOW_SAMPLES = 10;
+    private static final double BASELINE_SMOOTHING = 0.05;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double tolerance;
+    private final double backoff;
+    private final long windowNanos;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder windowSamples = new LongAdder();
+    private final LongAdder windowLatencyNanos = new LongAdder();
+    private final AtomicLong windowStart = new AtomicLong(System.nanoTime());
+    private volatile double limit;
+    private volatile double baselineNanos;
+
+    public AdmissionController(final int initialLimit, final int minLimit, final int maxLimit,
+                               final double tolerance, final double backoff, final long windowMillis) {
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.tolerance = tolerance;
+        this.backoff = backoff;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+    }
+
+    public static AdmissionController fromSystemProperties() {
+        return new AdmissionController(
+                Integer.getInteger("natter.admission.initialLimit", 20),
+                Integer.getInteger("natter.admission.minLimit", 1),
+                Integer.getInteger("natter.admission.maxLimit", 200),
+                Double.parseDouble(System.getProperty("natter.admission.tolerance", "2.0")),
+                Double.parseDouble(System.getProperty("natter.admission.backoff", "0.9")),
+                Long.getLong("natter.admission.windowMillis", 1000)
+        );
+    }
+
+    public void admit(Request request, Response response) {
+        if (inFlight.incrementAndGet() > (int) limit) {
+            inFlight.decrementAndGet();
+            rejected.increment();
+            response.header("Retry-After", "1");
+            halt(503);
+        }
+
+        admitted.increment();
+        request.attribute(ADMITTED_AT, System.nanoTime());
+    }
+
+    public void release(Request request, Response response) {
+        final Long start = request.attribute(ADMITTED_AT);
+        if (start == null) {
+            return;
+        }
+        request.attribute(ADMITTED_AT, null);
+        inFlight.decrementAndGet();
+
+        final var now = System.nanoTime();
+        final var status = response.status();
+        if (status >= 200 && status < 300 && !"OPTIONS".equals(request.requestMethod())) {
+            windowSamples.increment();
+            windowLatencyNanos.add(now - start);
+        }
+        maybeCloseWindow(now);
+    }
+
+    public JSONObject stats() {
+        final var total = admitted.sum() + rejected.sum();
+        return new JSONObject()
+                .put("limit", (int) limit)
+                .put("inFlight", inFlight.get())
+                .put("baselineMillis", baselineNanos / 1_000_000)
+                .put("admitted", admitted.sum())
+                .put("rejected", rejected.sum())
+                .put("rejectionRate", total == 0 ? 0.0 : rejected.sum() / (double) total);
+    }
+
+    private void maybeCloseWindow(final long now) {
+        final var start = windowStart.get();
+        if (now - start < windowNanos || windowSamples.sum() < MIN_WINDOW_SAMPLES
+                || !windowStart.compareAndSet(start, now)) {
+            return;
+        }
+
+        final var samples = windowSamples.sumThenReset();
+        final var latency = windowLatencyNanos.sumThenReset();
+        if (samples == 0) {
+            return;
+        }
+
+        final var meanNanos = latency / (double) samples;
+        final var baseline = baselineNanos == 0 ? meanNanos : baselineNanos;
+        if (meanNanos > baseline * tolerance) {
+            limit = Math.max(minLimit, limit * backoff);
+        } else {
+            limit = Math.min(maxLimit, limit + 1);
+        }
+        baselineNanos = baseline + (meanNanos - baseline) * BASELINE_SMOOTHING;
+    }
+}
@@ -1,11 +1,27 @@
 package com.manning.apisecurityinaction;
 
-import com.google.common.util.concurrent.RateLimiter;
 import com.manning.apisecurityinaction.controller.AuditController;
+import com.manning.apisecurityinaction.controller.AuditPartitions;
+import com.manning.apisecurityinaction.controller.AuditRollups;
+import com.manning.apisecurityinaction.controller.AuditWriter;
+import com.manning.apisecurityinaction.controller.CredentialCache;
+import com.manning.apisecurityinaction.controller.IdAllocator;
+import com.manning.apisecurityinaction.controller.MessageBroker;
+import com.manning.apisecurityinaction.controller.MessageCache;
+import com.manning.apisecurityinaction.controller.MetricsController;
+import com.manning.apisecurityinaction.controller.PasswordHasher;
+import com.manning.apisecurityinaction.controller.PermissionCache;
 import com.manning.apisecurityinaction.controller.SpaceController;
+import com.manning.apisecurityinaction.controller.SpaceVersions;
+import com.manning.apisecurityinaction.controller.SubscriptionController;
 import com.manning.apisecurityinaction.controller.TokenController;
 import com.manning.apisecurityinaction.controller.UserController;
+import com.manning.apisecurityinaction.token.BinaryTokenStore;
+import com.manning.apisecurityinaction.token.CachingTokenStore;
+import com.manning.apisecurityinaction.token.DatabaseTokenStore;
 import com.manning.apisecurityinaction.token.EncryptedJwtToeknStore;
+import com.manning.apisecurityinaction.token.RevocationList;
+import com.manning.apisecurityinaction.token.SecureTokenStore;
 import com.nimbusds.jose.JOSEException;
 import org.dalesbred.Database;
 import org.dalesbred.result.EmptyResultException;
@@ -27,7 +43,11 @@ import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
+import java.util.Arrays;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.Collectors;
 
 import static spark.Spark.afterAfter;
 import static spark.Spark.before;
@@ -41,6 +61,8 @@ import static spark.Spark.port;
 import static spark.Spark.post;
 import static spark.Spark.secure;
 import static spark.Spark.staticFiles;
+import static spark.Spark.webSocket;
+import static spark.Spark.webSocketIdleTimeoutMillis;
 
 public class Main {
     public static void main( String[] args ) throws URISyntaxException, IOException, KeyStoreException, CertificateException, NoSuchAlgorithmException, UnrecoverableKeyException, JOSEException {
@@ -48,19 +70,22 @@ public class Main {
         staticFiles.location("/public");
         secure("localhost.p12", "changeit", null, null);
         var datasource = JdbcConnectionPool.create("jdbc:h2:mem:natter", "natter", "password");
-        var database = Database.forDataSource(datasource);
-        createTables(database);
+        var adminDatabase = Database.forDataSource(datasource);
+        createTables(adminDatabase);
+        var auditPartitions = AuditPartitions.fromSystemProperties(adminDatabase).start();
 
         datasource = JdbcConnectionPool.create("jdbc:h2:mem:natter", "natter_api_user", "password");
-        database = Database.forDataSource(datasource);
+        var database = Database.forDataSource(datasource);
 
-        var rateLimiter = RateLimiter.create(2.0d);
-        before(((request, response) -> {
-            if (!rateLimiter.tryAcquire()) {
-                response.header("Retry-After", "2");
-                halt(429);
-            }
-        }));
+        // WebSocket routes must be mapped before any filter or route initialises Spark
+        final var messageBroker = MessageBroker.fromSystemProperties();
+        final var subscriptionController = SubscriptionController.fromSystemProperties(database, messageBroker);
+        webSocketIdleTimeoutMillis(Integer.getInteger("natter.subscribe.idleTimeoutMillis", 3_600_000));
+        webSocket("/subscribe", subscriptionController);
+
+        final var admissionController = AdmissionController.fromSystemProperties();
+        before(admissionController::admit);
+        afterAfter(admissionController::release);
 
         before(new CorsFilter(Set.of("https://localhost:9999")));
 
@@ -71,48 +96,98 @@ public class Main {
             }
         }));
 
-        afterAfter(((request, response) -> {
-            response.type("application/json;charset=utf-8");
-            response.header("X-Content-Type-Options", "nosniff");
-            response.header("X-Frame-Options", "DENY");
-            response.header("X-XSS-Protection", "0");
-            response.header("Cache-Control", "no-store");
-            response.header("Content-Security-Policy", "default-src 'none'; frame-ancestors 'none'; sandbox");
-            response.header("Server", "");
-        }));
+        before(Main::securityHeaders);
+        afterAfter(Main::securityHeaders);
 
         final var keyPassword = System.getProperty("keystore.password", "changeit").toCharArray();
         final var keyStore = KeyStore.getInstance("PKCS12");
         keyStore.load(new FileInputStream("keystore.p12"), keyPassword);
         final var encKey = keyStore.getKey("aes-key", keyPassword);
         final var naclKey = SecretBox.key(encKey.getEncoded());
-        final var tokenStore = new EncryptedJwtToeknStore(naclKey, tokenAllowList);
+        final var metricsController = new MetricsController();
+        metricsController.register("admission", admissionController::stats);
+        final var databaseTokenStore = DatabaseTokenStore.fromSystemProperties(database);
+        metricsController.register("tokenStore", databaseTokenStore::stats);
+        final var tokenAllowList = CachingTokenStore.fromSystemProperties(databaseTokenStore);
+        metricsController.register("tokenCache", tokenAllowList::stats);
+        final SecureTokenStore tokenStore;
+        if ("binary".equals(System.getProperty("natter.token.format"))) {
+            tokenStore = new BinaryTokenStore(naclKey, RevocationList.fromSystemProperties());
+        } else {
+            final var jwtTokenStore = new EncryptedJwtToeknStore(naclKey, tokenAllowList);
+            metricsController.register("jwtCache", jwtTokenStore::stats);
+            tokenStore = jwtTokenStore;
+        }
         final var tokenController = new TokenController(tokenStore);
 
-        final var userController = new UserController(database);
+        final var passwordHasher = PasswordHasher.fromSystemProperties();
+        metricsController.register("passwordHashing", passwordHasher::stats);
+        final var permissionCache = PermissionCache.fromSystemProperties(database);
+        metricsController.register("permissionCache", permissionCache::stats);
+        final var userController = Boolean.getBoolean("natter.auth.cache.enabled")
+                ? new UserController(database, passwordHasher, permissionCache, CredentialCache.fromSystemProperties())
+                : new UserController(database, passwordHasher, permissionCache);
+        final var rateLimitFilter = RateLimitFilter.fromSystemProperties(Map.of(
+                "/sessions", "sessions",
+                "/users", "users",
+                "/", "default"));
+        metricsController.register("rateLimit", rateLimitFilter::stats);
+        before(rateLimitFilter::limitAddress);
         before(userController::authenticate);
+        before(rateLimitFilter::settleLogin);
         before(tokenController::validateToken);
+        before(rateLimitFilter);
         post("/users", userController::registerUser);
 
-        var auditController = new AuditController(database);
+        var auditIds = IdAllocator.fromSystemProperties(database, "audit_id_seq");
+        metricsController.register("auditIds", auditIds::stats);
+        var auditWriter = AuditWriter.fromSystemProperties(database, auditIds, auditPartitions).start();
+        metricsController.register("audit", auditWriter::stats);
+        var auditController = new AuditController(database, auditWriter, auditPartitions, new AuditRollups());
         before(auditController::auditRequestStart);
         afterAfter(auditController::auditRequestEnd);
+        final var admins = Arrays.stream(System.getProperty("natter.admins", "").split(","))
+                .map(String::trim)
+                .filter(admin -> !admin.isEmpty())
+                .collect(Collectors.toUnmodifiableSet());
+        before("/logs", userController.requireAdmin(admins));
         get("/logs", auditController::readAuditLog);
+        before("/logs/export", userController.requireAdmin(admins));
+        get("/logs/export", auditController::exportAuditLog);
+        before("/logs/stats", userController.requireAdmin(admins));
+        get("/logs/stats", auditController::readAuditStats);
+
+        before("/metrics", userController::requireAuthentication);
+        get("/metrics", metricsController::readMetrics);
 
         before("/sessions", userController::requireAuthentication);
         post("/sessions", tokenController::login);
         delete("/sessions", tokenController::logout);
 
-        var spaceController = new SpaceController(database);
+        var messageCache = MessageCache.fromSystemProperties();
+        metricsController.register("messageCache", messageCache::stats);
+        var spaceVersions = new SpaceVersions();
+        metricsController.register("conditionalGet", spaceVersions::stats);
+        metricsController.register("subscriptions", messageBroker::stats);
+        var spaceIds = IdAllocator.fromSystemProperties(database, "space_id_seq");
+        metricsController.register("spaceIds", spaceIds::stats);
+        var msgIds = IdAllocator.fromSystemProperties(database, "msg_id_seq");
+        metricsController.register("msgIds", msgIds::stats);
+        var spaceController = new SpaceController(database, spaceIds, msgIds,
+                permissionCache, messageCache, spaceVersions, messageBroker);
         before("/spaces", userController::requireAuthentication);
         post("/spaces", spaceController::createSpace);
         get("/spaces", spaceController::getSpaces);
         before("/spaces/:spaceId/messages", userController.requirePermissions("POST", "w"));
         post("/spaces/:spaceId/messages", spaceController::postMessage);
+        before("/spaces/:spaceId/messages/batch", userController.requirePermissions("POST", "w"));
+        post("/spaces/:spaceId/messages/batch", spaceController::postMessages);
         before("/spaces/:spaceId/messages/:msgId", userController.requirePermissions("GET", "r"));
         get("/spaces/:spaceId/messages/:msgId", spaceController::readMessage);
         before("/spaces/:spaceId/messages", userController.requirePermissions("GET", "r"));
         get("/spaces/:spaceId/messages", spaceController::findMessages);
+        before("/spaces/:spaceId/subscriptions", userController.requirePermissions("POST", "r"));
+        post("/spaces/:spaceId/subscriptions", subscriptionController::issueTicket);
         before("/spaces/:spaceId/members", userController.requirePermissions("POST", "rwd"));
         post("/spaces/:spaceId/members", spaceController::addMember);
 
@@ -121,10 +196,33 @@ public class Main {
         exception(IllegalArgumentException.class, Main::badRequest);
         exception(JSONException.class, Main::badRequest);
         exception(EmptyResultException.class, (e, request, response) -> response.status(404));
+        exception(RejectedExecutionException.class, (e, request, response) -> {
+            response.status(503);
+            response.header("Retry-After", "1");
+        });
 
 
     }
 
+    private static void securityHeaders(final Request request, final Response response) {
+        // Applied before routes run, so responses streamed by a handler carry them too, and again
+        // afterwards for responses halted earlier; setHeader replaces rather than duplicates
+        final var raw = response.raw();
+        if (raw.isCommitted()) {
+            return;
+        }
+        response.type("application/json;charset=utf-8");
+        raw.setHeader("X-Content-Type-Options", "nosniff");
+        raw.setHeader("X-Frame-Options", "DENY");
+        raw.setHeader("X-XSS-Protection", "0");
+        // Routes that support conditional GET set their own private caching policy
+        if (!raw.containsHeader("Cache-Control")) {
+            raw.setHeader("Cache-Control", "no-store");
+        }
+        raw.setHeader("Content-Security-Policy", "default-src 'none'; frame-ancestors 'none'; sandbox");
+        raw.setHeader("Server", "");
+    }
+
     private static <T extends Exception> void badRequest(final T t, final Request request, final Response response) {
         response.status(400);
         response.body(new JSONObject()
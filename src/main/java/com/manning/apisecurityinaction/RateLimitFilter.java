@@ -0,0 +1,233 @@
+package com.manning.apisecurityinaction;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.json.JSONObject;
+import spark.Filter;
+import spark.Request;
+import spark.Response;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static spark.Spark.halt;
+
+/**
+ * Per-client rate limiting. {@link #limitAddress} runs before authentication and limits every
+ * request by client IP address, so password guesses are throttled before any hash is checked;
+ * {@link #handle} runs after authentication and limits authenticated requests by subject. Each
+ * Basic login also reserves a token from login buckets keyed by IP address and by IP address plus
+ * username, before the password is checked; {@link #settleLogin} gives the tokens back if the
+ * login succeeded, so only failures count. Nothing is keyed on the username alone, so guesses
+ * from elsewhere cannot lock an account's owner out. Each bucket is a lock-free generic cell rate
+ * algorithm over a single {@link AtomicLong}, and buckets live in a size-bounded cache that
+ * forgets idle clients.
+ */
+public class RateLimitFilter implements Filter {
+
+    private static final String LOGIN_RESERVATION = "ratelimit.login";
+
+    private final Map<String, Limit> limitsByPrefix;
+    private final Limit loginLimit;
+    private final Cache<String, Bucket> buckets;
+    private final Map<String, LongAdder> rejectionsByGroup = new ConcurrentHashMap<>();
+
+    public RateLimitFilter(final Map<String, Limit> limitsByPrefix, final Limit loginLimit,
+                           final long maximumClients) {
+        this.limitsByPrefix = new LinkedHashMap<>(limitsByPrefix);
+        this.loginLimit = loginLimit;
+        this.buckets = CacheBuilder.newBuilder()
+                .maximumSize(maximumClients)
+                .expireAfterAccess(Duration.ofMinutes(10))
+                .build();
+    }
+
+    /**
+     * Builds a filter with one route group per path prefix, longest prefix first. Each group's
+     * rate and burst can be overridden with {@code natter.ratelimit.<group>.rate} and
+     * {@code natter.ratelimit.<group>.burst}; failed logins are limited by
+     * {@code natter.ratelimit.login.rate} and {@code natter.ratelimit.login.burst}.
+     */
+    public static RateLimitFilter fromSystemProperties(final Map<String, String> groupsByPrefix) {
+        final var limits = new LinkedHashMap<String, Limit>();
+        groupsByPrefix.entrySet().stream()
+                .sorted(Comparator.comparingInt((Map.Entry<String, String> e) -> e.getKey().length()).reversed())
+                .forEach(e -> limits.put(e.getKey(), new Limit(e.getValue(),
+                        Double.parseDouble(System.getProperty("natter.ratelimit." + e.getValue() + ".rate", "10")),
+                        Integer.getInteger("natter.ratelimit." + e.getValue() + ".burst", 20))));
+
+        final var loginLimit = new Limit("login",
+                Double.parseDouble(System.getProperty("natter.ratelimit.login.rate", "0.1")),
+                Integer.getInteger("natter.ratelimit.login.burst", 5));
+
+        return new RateLimitFilter(limits, loginLimit, Long.getLong("natter.ratelimit.clients", 1_000_000));
+    }
+
+    /**
+     * Runs before authentication: limits every request by client IP address and, for a Basic
+     * login, reserves a login token from the address and from the address plus username, so
+     * concurrent guesses cannot all pass before any is counted.
+     */
+    public void limitAddress(final Request request, final Response response) throws Exception {
+        final var limit = limitFor(request.pathInfo());
+        if (limit != null) {
+            acquire(limit, "ip:" + request.ip(), response);
+        }
+
+        final var username = basicUsername(request);
+        if (username == null) {
+            return;
+        }
+
+        final var now = System.nanoTime();
+        final var byAddress = bucket(loginLimit, "ip:" + request.ip());
+        var waitNanos = byAddress.tryAcquire(now);
+        if (waitNanos > 0) {
+            reject(loginLimit, response, waitNanos);
+        }
+        final var byAccount = bucket(loginLimit, "ip-user:" + request.ip() + "|" + username);
+        waitNanos = byAccount.tryAcquire(now);
+        if (waitNanos > 0) {
+            byAddress.refund();
+            reject(loginLimit, response, waitNanos);
+        }
+        request.attribute(LOGIN_RESERVATION, new Bucket[]{byAddress, byAccount});
+    }
+
+    /**
+     * Runs after Basic authentication and returns the login tokens reserved by
+     * {@link #limitAddress} if the login succeeded; a failed login keeps them.
+     */
+    public void settleLogin(final Request request, final Response response) {
+        final Bucket[] reserved = request.attribute(LOGIN_RESERVATION);
+        if (reserved == null || request.attribute("subject") == null) {
+            return;
+        }
+
+        for (final var bucket : reserved) {
+            bucket.refund();
+        }
+    }
+
+    /**
+     * Runs after authentication and limits authenticated requests by subject.
+     */
+    @Override
+    public void handle(final Request request, final Response response) throws Exception {
+        final String subject = request.attribute("subject");
+        final var limit = limitFor(request.pathInfo());
+        if (subject == null || limit == null) {
+            return;
+        }
+
+        acquire(limit, "user:" + subject, response);
+    }
+
+    public JSONObject stats() {
+        final var byGroup = new JSONObject();
+        rejectionsByGroup.forEach((group, count) -> byGroup.put(group, count.sum()));
+
+        return new JSONObject()
+                .put("clients", buckets.size())
+                .put("rejections", rejectionsByGroup.values().stream().mapToLong(LongAdder::sum).sum())
+                .put("rejectionsByGroup", byGroup);
+    }
+
+    private Bucket bucket(final Limit limit, final String client) throws ExecutionException {
+        return buckets.get(limit.group + "|" + client, () -> new Bucket(limit));
+    }
+
+    private void acquire(final Limit limit, final String client, final Response response) throws ExecutionException {
+        final var waitNanos = bucket(limit, client).tryAcquire(System.nanoTime());
+        if (waitNanos > 0) {
+            reject(limit, response, waitNanos);
+        }
+    }
+
+    private void reject(final Limit limit, final Response response, final long waitNanos) {
+        rejectionsByGroup.computeIfAbsent(limit.group, group -> new LongAdder()).increment();
+        response.header("Retry-After", String.valueOf(Math.max(1, TimeUnit.NANOSECONDS.toSeconds(waitNanos + 999_999_999))));
+        halt(429);
+    }
+
+    private static String basicUsername(final Request request) {
+        final var authHeader = request.headers("Authorization");
+        if (authHeader == null || !authHeader.startsWith("Basic ")) {
+            return null;
+        }
+
+        try {
+            final var credentials = new String(Base64.getDecoder().decode(authHeader.substring(6)), StandardCharsets.UTF_8);
+            final var colon = credentials.indexOf(':');
+            return colon < 0 ? null : credentials.substring(0, colon);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private Limit limitFor(final String path) {
+        for (final var entry : limitsByPrefix.entrySet()) {
+            if (path.startsWith(entry.getKey())) {
+                return entry.getValue();
+            }
+        }
+
+        return null;
+    }
+
+    public static class Limit {
+        private final String group;
+        private final long intervalNanos;
+        private final long toleranceNanos;
+
+        public Limit(final String group, final double permitsPerSecond, final int burst) {
+            this.group = group;
+            this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond);
+            this.toleranceNanos = intervalNanos * Math.max(0, burst - 1);
+        }
+    }
+
+    private static class Bucket {
+        private final Limit limit;
+        /** Theoretical arrival time of the next request, in {@link System#nanoTime()} units. */
+        private final AtomicLong nextArrival;
+
+        private Bucket(final Limit limit) {
+            this.limit = limit;
+            this.nextArrival = new AtomicLong(System.nanoTime());
+        }
+
+        /**
+         * Returns zero if the request is allowed, otherwise how long the client must wait.
+         */
+        private long tryAcquire(final long now) {
+            while (true) {
+                final var arrival = nextArrival.get();
+                final var base = arrival - now < 0 ? now : arrival;
+                final var wait = base - now - limit.toleranceNanos;
+                if (wait > 0) {
+                    return wait;
+                }
+                if (nextArrival.compareAndSet(arrival, base + limit.intervalNanos)) {
+                    return 0;
+                }
+            }
+        }
+
+        /**
+         * Gives back a token taken by {@link #tryAcquire}.
+         */
+        private void refund() {
+            nextArrival.addAndGet(-limit.intervalNanos);
+        }
+    }
+}
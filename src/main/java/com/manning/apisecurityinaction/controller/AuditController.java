@@ -1,54 +1,199 @@
 package com.manning.apisecurityinaction.controller;
 
+import com.manning.apisecurityinaction.token.Base64URL;
 import org.dalesbred.Database;
+import org.dalesbred.DatabaseException;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import spark.Request;
 import spark.Response;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.time.Instant;
+import java.time.format.DateTimeParseException;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 
 public class AuditController {
 
+    private static final int PAGE_SIZE = 20;
+    private static final int EXPORT_CHUNK_SIZE = 500;
+
     private final Database database;
+    private final AuditWriter auditWriter;
+    private final AuditPartitions partitions;
+    private final AuditRollups rollups;
+    private final Semaphore exports = new Semaphore(Integer.getInteger("natter.audit.exportConcurrency", 2));
 
-    public AuditController(final Database database) {
+    public AuditController(final Database database, final AuditWriter auditWriter,
+                           final AuditPartitions partitions, final AuditRollups rollups) {
         this.database = database;
+        this.auditWriter = auditWriter;
+        this.partitions = partitions;
+        this.rollups = rollups;
     }
 
     public void auditRequestStart(Request request, Response response) {
-        database.withVoidTransaction(tx -> {
-            var auditId = database.findUniqueLong("SELECT NEXT VALUE FOR audit_id_seq");
-            request.attribute("audit_id", auditId);
-            database.updateUnique(
-                    "INSERT INTO audit_log(audit_id, method, path, user_id, audit_time) " +
-                            "VALUES (?, ?, ?, ?, current_timestamp)",
-                    auditId, request.requestMethod(), request.pathInfo(), request.attribute("subject")
-            );
-        });
+        request.attribute("audit_record", AuditWriter.Record.begin(request.requestMethod(), request.pathInfo()));
     }
 
     public void auditRequestEnd(Request request, Response response) {
-        database.updateUnique(
-                "INSERT INTO audit_log(audit_id, method, path, status, user_id, audit_time) " +
-                        "VALUES (?, ?, ?, ?, ?, current_timestamp)",
-                request.attribute("audit_id"), request.requestMethod(), request.pathInfo(), response.status(), request.attribute("subject")
-        );
+        AuditWriter.Record record = request.attribute("audit_record");
+        if (record == null) {
+            record = AuditWriter.Record.begin(request.requestMethod(), request.pathInfo());
+        }
+        record.complete(response.status(), request.attribute("subject"));
+        rollups.record(record.getUserId(), record.getPath(), record.getStatus(), record.getDurationNanos());
+        auditWriter.write(record);
+    }
+
+    public JSONObject readAuditStats(Request request, Response response) {
+        var by = request.queryParamOrDefault("by", "path");
+        var minutes = Integer.parseInt(request.queryParamOrDefault("minutes", "5"));
+
+        return new JSONObject()
+                .put("by", by)
+                .put("minutes", minutes)
+                .put("stats", rollups.summarize(by, minutes));
     }
 
     public JSONArray readAuditLog(Request request, Response response) {
-        var since = Instant.now().minus(1, ChronoUnit.HOURS);
-        var logs = database.findAll(AuditController::recordToJson,
-                "SELECT * FROM audit_log WHERE audit_time >= ? LIMIT 20",
-                since
-        );
+        var filter = new Filter(request, Instant.now().minus(1, ChronoUnit.HOURS));
+        var since = filter.since;
+        var cursor = request.queryParams("cursor");
+        if (cursor != null) {
+            var position = decodeCursor(cursor);
+            filter.sql.append(" AND (audit_time > ? OR (audit_time = ? AND audit_id > ?))");
+            filter.args.add(position.time);
+            filter.args.add(position.time);
+            filter.args.add(position.auditId);
+            if (position.time.isAfter(since)) {
+                since = position.time;
+            }
+        }
+
+        var logs = new ArrayList<JSONObject>();
+        for (var table : partitions.tablesBetween(since, filter.until)) {
+            var args = new ArrayList<>(filter.args);
+            args.add(PAGE_SIZE - logs.size());
+            logs.addAll(findInPartition(table, filter.sql, args));
+            if (logs.size() == PAGE_SIZE) {
+                break;
+            }
+        }
+
+        if (logs.size() == PAGE_SIZE) {
+            var last = logs.get(logs.size() - 1);
+            var next = encodeCursor((Instant) last.get("time"), last.getLong("id"));
+            response.header("Link", "<" + nextPageUri(request, next) + ">; rel=\"next\"");
+        }
 
         return new JSONArray(logs);
     }
 
+    /**
+     * Streams matching records as NDJSON. Records are read in keyset-paginated chunks, so no
+     * pooled connection is held while writing to a possibly slow client, and at most
+     * {@code natter.audit.exportConcurrency} exports run at once; further ones get a 503.
+     */
+    public String exportAuditLog(Request request, Response response) throws IOException {
+        var filter = new Filter(request, Instant.EPOCH);
+        if (!exports.tryAcquire()) {
+            throw new RejectedExecutionException("too many concurrent audit exports");
+        }
+
+        try {
+            response.status(200);
+            response.type("application/x-ndjson;charset=utf-8");
+            var out = new BufferedWriter(new OutputStreamWriter(response.raw().getOutputStream(), StandardCharsets.UTF_8));
+            for (var table : partitions.tablesBetween(filter.since, filter.until)) {
+                List<JSONObject> chunk = List.of();
+                do {
+                    var sql = new StringBuilder(filter.sql);
+                    var args = new ArrayList<>(filter.args);
+                    if (!chunk.isEmpty()) {
+                        var last = chunk.get(chunk.size() - 1);
+                        sql.append(" AND (audit_time > ? OR (audit_time = ? AND audit_id > ?))");
+                        args.add(last.get("time"));
+                        args.add(last.get("time"));
+                        args.add(last.getLong("id"));
+                    }
+                    args.add(EXPORT_CHUNK_SIZE);
+                    chunk = findInPartition(table, sql, args);
+                    for (var record : chunk) {
+                        out.write(record.toString());
+                        out.write('\n');
+                    }
+                } while (chunk.size() == EXPORT_CHUNK_SIZE);
+            }
+            out.flush();
+        } finally {
+            exports.release();
+        }
+
+        return "";
+    }
+
+    private List<JSONObject> findInPartition(final String table, final CharSequence where, final List<Object> args) {
+        try {
+            return database.findAll(AuditController::recordToJson,
+                    "SELECT * FROM " + table + " WHERE " + where + " ORDER BY audit_time, audit_id LIMIT ?",
+                    args.toArray());
+        } catch (DatabaseException e) {
+            // Retention may drop a partition between tablesBetween and this query
+            if (!partitions.exists(table)) {
+                return List.of();
+            }
+            throw e;
+        }
+    }
+
+    private static Instant parseInstant(final String value, final Instant defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Instant.parse(value);
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("invalid timestamp: " + value);
+        }
+    }
+
+    private static String encodeCursor(final Instant time, final long auditId) {
+        return Base64URL.encode((time + "/" + auditId).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Position decodeCursor(final String cursor) {
+        try {
+            var parts = new String(Base64URL.decode(cursor), StandardCharsets.UTF_8).split("/", 2);
+            return new Position(Instant.parse(parts[0]), Long.parseLong(parts[1]));
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("invalid cursor");
+        }
+    }
+
+    private static String nextPageUri(final Request request, final String cursor) {
+        var uri = new StringBuilder(request.pathInfo()).append("?cursor=").append(cursor);
+        for (var param : List.of("since", "until", "user", "status")) {
+            var value = request.queryParams(param);
+            if (value != null) {
+                uri.append('&').append(param).append('=').append(URLEncoder.encode(value, StandardCharsets.UTF_8));
+            }
+        }
+
+        return uri.toString();
+    }
+
     private static JSONObject recordToJson(final ResultSet resultSet) throws SQLException {
         return new JSONObject()
                 .put("id", resultSet.getLong("audit_id"))
@@ -56,6 +201,48 @@ public class AuditController {
                 .put("path", resultSet.getString("path"))
                 .put("status", resultSet.getInt("status"))
                 .put("user", resultSet.getString("user_id"))
-                .put("time", resultSet.getTimestamp("audit_time").toInstant());
+                .put("time", resultSet.getTimestamp("audit_time").toInstant())
+                .put("durationNanos", resultSet.getLong("duration_ns"));
+    }
+
+    private static class Position {
+        private final Instant time;
+        private final long auditId;
+
+        private Position(final Instant time, final long auditId) {
+            this.time = time;
+            this.auditId = auditId;
+        }
+    }
+
+    private static class Filter {
+        private final Instant since;
+        private final Instant until;
+        private final StringBuilder sql = new StringBuilder();
+        private final List<Object> args = new ArrayList<>();
+
+        private Filter(final Request request, final Instant defaultSince) {
+            since = parseInstant(request.queryParams("since"), defaultSince);
+            sql.append("audit_time >= ?");
+            args.add(since);
+
+            until = parseInstant(request.queryParams("until"), null);
+            if (until != null) {
+                sql.append(" AND audit_time < ?");
+                args.add(until);
+            }
+
+            var user = request.queryParams("user");
+            if (user != null) {
+                sql.append(" AND user_id = ?");
+                args.add(user);
+            }
+
+            var status = request.queryParams("status");
+            if (status != null) {
+                sql.append(" AND status = ?");
+                args.add(Integer.parseInt(status));
+            }
+        }
     }
 }
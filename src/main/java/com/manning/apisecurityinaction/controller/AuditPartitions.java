@@ -0,0 +1,144 @@
+package com.manning.apisecurityinaction.controller;
+
+import org.dalesbred.Database;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Routes audit rows to one {@code audit_log_yyyyMMdd} table per UTC day. Retention is enforced
+ * by dropping whole day tables, and time-bounded queries only visit the days they overlap.
+ * Partitions are created and dropped through the schema owner's connection, since the API
+ * user is only granted SELECT and INSERT on them.
+ */
+public class AuditPartitions {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AuditPartitions.class);
+    private static final String PREFIX = "AUDIT_LOG_";
+    private static final DateTimeFormatter DAY = DateTimeFormatter.ofPattern("yyyyMMdd");
+
+    private final Database adminDatabase;
+    private final Duration retention;
+    private final ConcurrentSkipListSet<LocalDate> days = new ConcurrentSkipListSet<>();
+
+    public AuditPartitions(final Database adminDatabase, final Duration retention) {
+        this.adminDatabase = adminDatabase;
+        this.retention = retention;
+    }
+
+    public static AuditPartitions fromSystemProperties(final Database adminDatabase) {
+        return new AuditPartitions(adminDatabase,
+                Duration.ofDays(Long.getLong("natter.audit.retentionDays", 30)));
+    }
+
+    public AuditPartitions start() {
+        adminDatabase.findAll(String.class,
+                "SELECT table_name FROM information_schema.tables " +
+                        "WHERE table_schema = 'PUBLIC' AND table_name LIKE 'AUDIT\\_LOG\\_%'")
+                .forEach(table -> days.add(LocalDate.parse(table.substring(PREFIX.length()), DAY)));
+
+        final var executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final var thread = new Thread(runnable, "audit-partitions");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleAtFixedRate(this::runMaintenance, 0, 1, TimeUnit.HOURS);
+
+        return this;
+    }
+
+    public String tableFor(final Instant time) {
+        final var day = LocalDate.ofInstant(time, ZoneOffset.UTC);
+        if (!days.contains(day)) {
+            create(day);
+        }
+
+        return tableName(day);
+    }
+
+    /**
+     * Returns the existing partitions that may hold rows in {@code [since, until)}, oldest
+     * first. A null {@code until} means no upper bound.
+     */
+    public List<String> tablesBetween(final Instant since, final Instant until) {
+        final var from = LocalDate.ofInstant(since, ZoneOffset.UTC);
+        final var range = until == null
+                ? days.tailSet(from, true)
+                : days.subSet(from, true, LocalDate.ofInstant(until, ZoneOffset.UTC), true);
+
+        return range.stream().map(AuditPartitions::tableName).collect(Collectors.toList());
+    }
+
+    /**
+     * Returns false once {@code table} has been dropped by retention, so a reader that got it
+     * from {@link #tablesBetween} just before the drop can treat its query failure as no rows.
+     */
+    public boolean exists(final String table) {
+        return days.contains(LocalDate.parse(table.substring(PREFIX.length()), DAY));
+    }
+
+    /**
+     * A scheduled task that throws is never run again, so failures are logged here and the next
+     * hour's run goes ahead as planned.
+     */
+    private void runMaintenance() {
+        try {
+            maintain();
+        } catch (RuntimeException e) {
+            LOG.warn("Audit partition maintenance failed", e);
+        }
+    }
+
+    public void maintain() {
+        final var today = LocalDate.now(ZoneOffset.UTC);
+        create(today);
+        create(today.plusDays(1));
+
+        final var cutoff = LocalDate.ofInstant(Instant.now().minus(retention), ZoneOffset.UTC);
+        for (final LocalDate day : days.headSet(cutoff)) {
+            // Removed first so readers racing the drop see it as gone; restored if the drop fails
+            days.remove(day);
+            try {
+                adminDatabase.update("DROP TABLE IF EXISTS " + tableName(day));
+            } catch (RuntimeException e) {
+                days.add(day);
+                throw e;
+            }
+        }
+    }
+
+    private synchronized void create(final LocalDate day) {
+        if (days.contains(day)) {
+            return;
+        }
+
+        final var table = tableName(day);
+        adminDatabase.update("CREATE TABLE IF NOT EXISTS " + table + "(" +
+                "audit_id    INT PRIMARY KEY, " +
+                "method      VARCHAR(10)  NOT NULL, " +
+                "path        VARCHAR(100) NOT NULL, " +
+                "user_id     VARCHAR(30)  NULL, " +
+                "status      INT          NOT NULL, " +
+                "audit_time  TIMESTAMP    NOT NULL, " +
+                "duration_ns BIGINT       NOT NULL)");
+        adminDatabase.update("CREATE INDEX IF NOT EXISTS " + table + "_time_idx ON " + table + " (audit_time, audit_id)");
+        adminDatabase.update("CREATE INDEX IF NOT EXISTS " + table + "_user_idx ON " + table + " (user_id, audit_time, audit_id)");
+        adminDatabase.update("CREATE INDEX IF NOT EXISTS " + table + "_status_idx ON " + table + " (status, audit_time, audit_id)");
+        adminDatabase.update("GRANT SELECT, INSERT ON " + table + " TO natter_api_user");
+        days.add(day);
+    }
+
+    private static String tableName(final LocalDate day) {
+        return PREFIX + DAY.format(day);
+    }
+}
@@ -0,0 +1,119 @@
+package com.manning.apisecurityinaction.controller;
+
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Rolling per-minute request counts and latency sums by user, path and status, fed from
+ * completed audit records. Minutes are kept in a ring of buckets that are replaced with a
+ * compare-and-set when they roll over, so recording never takes a lock.
+ */
+public class AuditRollups {
+
+    public static final int WINDOW_MINUTES = 60;
+    private static final int MAX_KEYS_PER_DIMENSION = 10_000;
+    private static final String OTHER = "(other)";
+    private static final Set<String> DIMENSIONS = Set.of("user", "path", "status");
+
+    private final AtomicReferenceArray<Bucket> buckets = new AtomicReferenceArray<>(WINDOW_MINUTES);
+
+    public void record(final String user, final String path, final int status, final long durationNanos) {
+        final var bucket = bucketFor(currentMinute());
+        bucket.add(bucket.byUser, user == null ? "(anonymous)" : user, durationNanos);
+        bucket.add(bucket.byPath, path, durationNanos);
+        bucket.add(bucket.byStatus, String.valueOf(status), durationNanos);
+    }
+
+    public JSONObject summarize(final String dimension, final int minutes) {
+        if (minutes < 1 || minutes > WINDOW_MINUTES) {
+            throw new IllegalArgumentException("minutes must be between 1 and " + WINDOW_MINUTES);
+        }
+        if (!DIMENSIONS.contains(dimension)) {
+            throw new IllegalArgumentException("unknown dimension: " + dimension);
+        }
+
+        final var now = currentMinute();
+        final var totals = new HashMap<String, long[]>();
+        for (var minute = now - minutes + 1; minute <= now; minute++) {
+            final var bucket = buckets.get(slot(minute));
+            if (bucket == null || bucket.minute != minute) {
+                continue;
+            }
+            bucket.dimension(dimension).forEach((key, counter) -> {
+                final var total = totals.computeIfAbsent(key, k -> new long[2]);
+                total[0] += counter.count.sum();
+                total[1] += counter.nanos.sum();
+            });
+        }
+
+        final var result = new JSONObject();
+        totals.forEach((key, total) -> result.put(key, new JSONObject()
+                .put("requests", total[0])
+                .put("meanLatencyMillis", total[0] == 0 ? 0.0 : total[1] / (double) total[0] / 1_000_000)));
+
+        return result;
+    }
+
+    private Bucket bucketFor(final long minute) {
+        final var slot = slot(minute);
+        while (true) {
+            final var bucket = buckets.get(slot);
+            if (bucket != null && bucket.minute >= minute) {
+                return bucket;
+            }
+            buckets.compareAndSet(slot, bucket, new Bucket(minute));
+        }
+    }
+
+    private static int slot(final long minute) {
+        return (int) Math.floorMod(minute, (long) WINDOW_MINUTES);
+    }
+
+    private static long currentMinute() {
+        return TimeUnit.MILLISECONDS.toMinutes(System.currentTimeMillis());
+    }
+
+    private static class Bucket {
+        private final long minute;
+        private final Map<String, Counter> byUser = new ConcurrentHashMap<>();
+        private final Map<String, Counter> byPath = new ConcurrentHashMap<>();
+        private final Map<String, Counter> byStatus = new ConcurrentHashMap<>();
+
+        private Bucket(final long minute) {
+            this.minute = minute;
+        }
+
+        private void add(final Map<String, Counter> counters, final String key, final long nanos) {
+            var counter = counters.get(key);
+            if (counter == null) {
+                final var bounded = counters.size() < MAX_KEYS_PER_DIMENSION ? key : OTHER;
+                counter = counters.computeIfAbsent(bounded, k -> new Counter());
+            }
+            counter.count.increment();
+            counter.nanos.add(nanos);
+        }
+
+        private Map<String, Counter> dimension(final String name) {
+            switch (name) {
+                case "user":
+                    return byUser;
+                case "path":
+                    return byPath;
+                default:
+                    return byStatus;
+            }
+        }
+    }
+
+    private static class Counter {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+    }
+}
@@ -0,0 +1,239 @@
+package com.manning.apisecurityinaction.controller;
+
+import org.dalesbred.Database;
+import org.json.JSONObject;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Writes audit records either synchronously or from a background thread that drains a bounded
+ * buffer and inserts with JDBC batches. Records that do not fit in the buffer are dropped and
+ * counted rather than blocking the request.
+ */
+public class AuditWriter {
+
+    public enum Durability {
+        /** Insert on the request thread, as before. */
+        SYNC,
+        /** Buffer and flush in the background; anything still buffered at exit is lost. */
+        ASYNC,
+        /** Buffer and flush in the background, draining the buffer from a shutdown hook. */
+        ASYNC_FLUSH_ON_SHUTDOWN
+    }
+
+    private final Database database;
+    private final IdAllocator auditIds;
+    private final AuditPartitions partitions;
+    private final Durability durability;
+    private final BlockingQueue<Record> buffer;
+    private final int batchSize;
+    private final Duration flushInterval;
+    private final LongAdder written = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private volatile boolean running = true;
+    private Thread flusher;
+
+    public AuditWriter(final Database database, final IdAllocator auditIds, final AuditPartitions partitions,
+                       final Durability durability, final int capacity, final int batchSize,
+                       final Duration flushInterval) {
+        this.database = database;
+        this.auditIds = auditIds;
+        this.partitions = partitions;
+        this.durability = durability;
+        this.buffer = new ArrayBlockingQueue<>(capacity);
+        this.batchSize = batchSize;
+        this.flushInterval = flushInterval;
+    }
+
+    public static AuditWriter fromSystemProperties(final Database database, final IdAllocator auditIds,
+                                                   final AuditPartitions partitions) {
+        return new AuditWriter(database, auditIds, partitions,
+                Durability.valueOf(System.getProperty("natter.audit.durability", Durability.ASYNC_FLUSH_ON_SHUTDOWN.name())),
+                Integer.getInteger("natter.audit.buffer", 65536),
+                Integer.getInteger("natter.audit.batch", 500),
+                Duration.ofMillis(Long.getLong("natter.audit.flushMillis", 200))
+        );
+    }
+
+    public AuditWriter start() {
+        if (durability == Durability.SYNC) {
+            return this;
+        }
+
+        flusher = new Thread(this::run, "audit-writer");
+        flusher.setDaemon(true);
+        flusher.start();
+        if (durability == Durability.ASYNC_FLUSH_ON_SHUTDOWN) {
+            Runtime.getRuntime().addShutdownHook(new Thread(this::stop, "audit-writer-shutdown"));
+        }
+
+        return this;
+    }
+
+    public void stop() {
+        running = false;
+        if (flusher == null) {
+            return;
+        }
+
+        try {
+            flusher.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void write(final Record record) {
+        if (durability == Durability.SYNC) {
+            writeBatch(List.of(record));
+            return;
+        }
+
+        if (!buffer.offer(record)) {
+            dropped.increment();
+        }
+    }
+
+    public JSONObject stats() {
+        return new JSONObject()
+                .put("durability", durability.name())
+                .put("buffered", buffer.size())
+                .put("written", written.sum())
+                .put("dropped", dropped.sum())
+                .put("failed", failed.sum());
+    }
+
+    private void run() {
+        final var batch = new ArrayList<Record>(batchSize);
+        while (running || !buffer.isEmpty()) {
+            try {
+                final var first = buffer.poll(flushInterval.toMillis(), TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                buffer.drainTo(batch, batchSize - 1);
+                writeBatch(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                failed.add(batch.size());
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void writeBatch(final List<Record> records) {
+        final var tables = new ArrayList<String>(records.size());
+        for (final Record record : records) {
+            tables.add(partitions.tableFor(record.time));
+        }
+
+        assignIds(records);
+        try {
+            database.withVoidTransaction(tx -> {
+                final var byTable = new HashMap<String, List<List<?>>>();
+                for (var i = 0; i < records.size(); i++) {
+                    byTable.computeIfAbsent(tables.get(i), table -> new ArrayList<>())
+                            .add(records.get(i).toRow());
+                }
+                byTable.forEach((table, rows) -> database.updateBatch(insertInto(table), rows));
+            });
+            written.add(records.size());
+        } catch (RuntimeException e) {
+            // Retry row by row so a single bad row does not take the rest of the batch with it
+            for (var i = 0; i < records.size(); i++) {
+                try {
+                    database.update(insertInto(tables.get(i)), records.get(i).toRow().toArray());
+                    written.increment();
+                } catch (RuntimeException rowFailure) {
+                    failed.increment();
+                }
+            }
+        }
+    }
+
+    private static String insertInto(final String table) {
+        return "INSERT INTO " + table + "(audit_id, method, path, status, user_id, audit_time, duration_ns) " +
+                "VALUES (?, ?, ?, ?, ?, ?, ?)";
+    }
+
+    private void assignIds(final List<Record> records) {
+        for (final Record record : records) {
+            record.auditId = auditIds.next();
+        }
+    }
+
+    /**
+     * One audit row per request. The record is begun when the request arrives and completed
+     * with the response status once it has been handled; the duration is measured with
+     * {@link System#nanoTime()} between the two.
+     */
+    public static class Record {
+        private static final int MAX_METHOD_LENGTH = 10;
+        private static final int MAX_PATH_LENGTH = 100;
+
+        private final String method;
+        private final String path;
+        private final Instant time;
+        private final long startNanos;
+        private long auditId;
+        private String userId;
+        private int status;
+        private long durationNanos;
+
+        private Record(final String method, final String path) {
+            this.method = truncate(method, MAX_METHOD_LENGTH);
+            this.path = truncate(path, MAX_PATH_LENGTH);
+            this.time = Instant.now();
+            this.startNanos = System.nanoTime();
+        }
+
+        public static Record begin(final String method, final String path) {
+            return new Record(method, path);
+        }
+
+        public Record complete(final int status, final String userId) {
+            this.durationNanos = System.nanoTime() - startNanos;
+            this.status = status;
+            this.userId = userId;
+            return this;
+        }
+
+        String getUserId() {
+            return userId;
+        }
+
+        String getPath() {
+            return path;
+        }
+
+        int getStatus() {
+            return status;
+        }
+
+        long getDurationNanos() {
+            return durationNanos;
+        }
+
+        private static String truncate(final String value, final int maxLength) {
+            return value.length() <= maxLength ? value : value.substring(0, maxLength);
+        }
+
+        private List<?> toRow() {
+            return Arrays.asList(auditId, method, path, status, userId, time, durationNanos);
+        }
+    }
+}
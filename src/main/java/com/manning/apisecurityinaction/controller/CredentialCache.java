@@ -0,0 +1,70 @@
+package com.manning.apisecurityinaction.controller;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.manning.apisecurityinaction.token.Base64URL;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+
+/**
+ * Remembers successful Basic-auth verifications so repeat clients skip the scrypt check.
+ * Entries are keyed by an HMAC of the credentials under a per-process random key, so the
+ * plaintext password is never held in memory, and each entry records the {@code pw_hash}
+ * it was verified against so a password change invalidates it.
+ */
+public class CredentialCache {
+
+    private final Cache<String, String> verified;
+    private final SecretKey macKey;
+
+    public CredentialCache(final long maximumSize, final Duration timeToLive) {
+        this.verified = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(timeToLive)
+                .build();
+        try {
+            this.macKey = KeyGenerator.getInstance("HmacSHA256").generateKey();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static CredentialCache fromSystemProperties() {
+        return new CredentialCache(
+                Long.getLong("natter.auth.cache.size", 10_000),
+                Duration.ofSeconds(Long.getLong("natter.auth.cache.ttl", 300))
+        );
+    }
+
+    public boolean isVerified(final String username, final String password, final String pwHash) {
+        return pwHash.equals(verified.getIfPresent(key(username, password)));
+    }
+
+    public void markVerified(final String username, final String password, final String pwHash) {
+        verified.put(key(username, password), pwHash);
+    }
+
+    private String key(final String username, final String password) {
+        final var user = username.getBytes(StandardCharsets.UTF_8);
+        final var pass = password.getBytes(StandardCharsets.UTF_8);
+        final var input = ByteBuffer.allocate(4 + user.length + pass.length)
+                .putInt(user.length)
+                .put(user)
+                .put(pass)
+                .array();
+        try {
+            final var mac = Mac.getInstance("HmacSHA256");
+            mac.init(macKey);
+
+            return Base64URL.encode(mac.doFinal(input));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.manning.apisecurityinaction.controller;
+
+import org.dalesbred.Database;
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hands out IDs from blocks reserved with a single {@code NEXT VALUE FOR} on a database
+ * sequence (hi/lo): sequence value {@code hi} reserves IDs {@code hi * blockSize} up to
+ * {@code (hi + 1) * blockSize - 1}. IDs within a block come from an atomic counter; only the
+ * thread that exhausts a block goes to the database for the next one. IDs left in a block are
+ * lost on restart, and every node sharing the database must use the same block size. IDs from
+ * different nodes interleave, so a higher ID does not mean a later row: anything that pages or
+ * resumes in time order must use the row's timestamp with the ID only as a tie-breaker.
+ */
+public class IdAllocator {
+
+    private final Database database;
+    private final String sequence;
+    private final int blockSize;
+    private final LongAdder blocks = new LongAdder();
+    private volatile Block current = new Block(0, 0);
+
+    public IdAllocator(final Database database, final String sequence, final int blockSize) {
+        if (!sequence.matches("[a-z_]+")) {
+            throw new IllegalArgumentException("invalid sequence name");
+        }
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("block size must be positive");
+        }
+        this.database = database;
+        this.sequence = sequence;
+        this.blockSize = blockSize;
+    }
+
+    public static IdAllocator fromSystemProperties(final Database database, final String sequence) {
+        return new IdAllocator(database, sequence, Integer.getInteger("natter.ids.blockSize", 100));
+    }
+
+    public long next() {
+        while (true) {
+            final var block = current;
+            final var id = block.next.getAndIncrement();
+            if (id < block.end) {
+                return id;
+            }
+            reserve(block);
+        }
+    }
+
+    public long[] next(final int count) {
+        final var ids = new long[count];
+        for (var i = 0; i < count; i++) {
+            ids[i] = next();
+        }
+
+        return ids;
+    }
+
+    public JSONObject stats() {
+        return new JSONObject()
+                .put("blockSize", blockSize)
+                .put("blocksReserved", blocks.sum());
+    }
+
+    private synchronized void reserve(final Block exhausted) {
+        if (current != exhausted) {
+            return;
+        }
+
+        final var hi = database.findUniqueLong("SELECT NEXT VALUE FOR " + sequence);
+        blocks.increment();
+        current = new Block(hi * blockSize, (hi + 1) * blockSize);
+    }
+
+    private static class Block {
+        private final AtomicLong next;
+        private final long end;
+
+        private Block(final long start, final long end) {
+            this.next = new AtomicLong(start);
+            this.end = end;
+        }
+    }
+}
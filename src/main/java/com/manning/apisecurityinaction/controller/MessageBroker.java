@@ -0,0 +1,157 @@
+package com.manning.apisecurityinaction.controller;
+
+import com.manning.apisecurityinaction.model.Message;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fans committed messages out to the WebSocket subscribers of their space. Each subscriber has
+ * a bounded buffer of rendered messages and at most one asynchronous write in flight, so an
+ * idle connection holds no thread and a slow one holds at most {@code bufferSize} messages
+ * before it is disconnected.
+ */
+public class MessageBroker {
+
+    private final int bufferSize;
+    private final ConcurrentMap<Long, Set<Subscriber>> subscribers = new ConcurrentHashMap<>();
+    private final LongAdder published = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder slowConsumers = new LongAdder();
+
+    public MessageBroker(final int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    public static MessageBroker fromSystemProperties() {
+        return new MessageBroker(Integer.getInteger("natter.subscribe.buffer", 64));
+    }
+
+    /**
+     * Registers a subscriber that buffers, but does not send, messages published from now on
+     * until {@link Subscriber#start(List)} is called with the messages to replay first.
+     */
+    public Subscriber subscribe(final long spaceId, final Session session) {
+        final var subscriber = new Subscriber(spaceId, session);
+        subscribers.computeIfAbsent(spaceId, id -> ConcurrentHashMap.newKeySet()).add(subscriber);
+
+        return subscriber;
+    }
+
+    public void unsubscribe(final Subscriber subscriber) {
+        subscribers.computeIfPresent(subscriber.spaceId, (id, set) -> {
+            set.remove(subscriber);
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    public void publish(final long spaceId, final Message message) {
+        final var set = subscribers.get(spaceId);
+        if (set == null) {
+            return;
+        }
+
+        published.increment();
+        final var json = message.toString();
+        for (final var subscriber : set) {
+            if (!subscriber.offer(message.getMsgId(), json)) {
+                slowConsumers.increment();
+                unsubscribe(subscriber);
+                subscriber.session.close(StatusCode.TRY_AGAIN_LATER, "slow consumer");
+            }
+        }
+    }
+
+    public JSONObject stats() {
+        return new JSONObject()
+                .put("spaces", subscribers.size())
+                .put("subscribers", subscribers.values().stream().mapToInt(Set::size).sum())
+                .put("published", published.sum())
+                .put("delivered", delivered.sum())
+                .put("slowConsumers", slowConsumers.sum());
+    }
+
+    public class Subscriber implements WriteCallback {
+        private final long spaceId;
+        private final Session session;
+        private final ArrayDeque<Pending> replay = new ArrayDeque<>();
+        private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+        private final Set<Long> replayed = new HashSet<>();
+        private boolean started;
+        private boolean writing;
+
+        private Subscriber(final long spaceId, final Session session) {
+            this.spaceId = spaceId;
+            this.session = session;
+        }
+
+        /**
+         * Sends the replayed messages, then anything published since {@link #subscribe} that
+         * was not already part of the replay. Replayed messages do not count against the buffer.
+         */
+        public synchronized void start(final List<Message> messages) {
+            for (final var message : messages) {
+                replayed.add(message.getMsgId());
+                replay.add(new Pending(message.getMsgId(), message.toString()));
+            }
+            pending.removeIf(message -> replayed.contains(message.msgId));
+            started = true;
+            writeNext();
+        }
+
+        private synchronized boolean offer(final long msgId, final String json) {
+            if (replayed.contains(msgId)) {
+                return true;
+            }
+            if (pending.size() >= bufferSize) {
+                return false;
+            }
+
+            pending.add(new Pending(msgId, json));
+            if (started && !writing) {
+                writeNext();
+            }
+
+            return true;
+        }
+
+        private synchronized void writeNext() {
+            final var next = replay.isEmpty() ? pending.poll() : replay.poll();
+            writing = next != null;
+            if (next != null) {
+                session.getRemote().sendString(next.json, this);
+            }
+        }
+
+        @Override
+        public void writeSuccess() {
+            delivered.increment();
+            writeNext();
+        }
+
+        @Override
+        public void writeFailed(final Throwable x) {
+            unsubscribe(this);
+            session.close(StatusCode.SERVER_ERROR, "write failed");
+        }
+    }
+
+    private static class Pending {
+        private final long msgId;
+        private final String json;
+
+        private Pending(final long msgId, final String json) {
+            this.msgId = msgId;
+            this.json = json;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.manning.apisecurityinaction.controller;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalNotification;
+import com.manning.apisecurityinaction.model.Message;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rendered JSON for individual messages, keyed by space and message ID. Messages are never
+ * updated after they are posted, so an entry only needs evicting if the message is deleted.
+ * The cache is bounded by the total size of the rendered bytes.
+ */
+public class MessageCache {
+
+    private final Cache<String, byte[]> rendered;
+    private final AtomicLong bytes = new AtomicLong();
+
+    public MessageCache(final long maximumBytes) {
+        this.rendered = CacheBuilder.newBuilder()
+                .maximumWeight(maximumBytes)
+                .<String, byte[]>weigher((key, value) -> value.length)
+                .removalListener((RemovalNotification<String, byte[]> removed) -> bytes.addAndGet(-removed.getValue().length))
+                .recordStats()
+                .build();
+    }
+
+    public static MessageCache fromSystemProperties() {
+        return new MessageCache(Long.getLong("natter.message.cache.bytes", 64L * 1024 * 1024));
+    }
+
+    public byte[] get(final long spaceId, final long msgId) {
+        return rendered.getIfPresent(key(spaceId, msgId));
+    }
+
+    public byte[] put(final long spaceId, final Message message) {
+        final var json = message.toString().getBytes(StandardCharsets.UTF_8);
+        rendered.put(key(spaceId, message.getMsgId()), json);
+        bytes.addAndGet(json.length);
+
+        return json;
+    }
+
+    public void evict(final long spaceId, final long msgId) {
+        rendered.invalidate(key(spaceId, msgId));
+    }
+
+    public JSONObject stats() {
+        final var stats = rendered.stats();
+        return new JSONObject()
+                .put("entries", rendered.size())
+                .put("bytes", bytes.get())
+                .put("hits", stats.hitCount())
+                .put("misses", stats.missCount())
+                .put("hitRate", stats.hitRate())
+                .put("evictions", stats.evictionCount());
+    }
+
+    private static String key(final long spaceId, final long msgId) {
+        return spaceId + "/" + msgId;
+    }
+}
@@ -0,0 +1,25 @@
+package com.manning.apisecurityinaction.controller;
+
+import org.json.JSONObject;
+import spark.Request;
+import spark.Response;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Supplier;
+
+public class MetricsController {
+
+    private final Map<String, Supplier<JSONObject>> sources = new ConcurrentSkipListMap<>();
+
+    public void register(final String name, final Supplier<JSONObject> source) {
+        sources.put(name, source);
+    }
+
+    public JSONObject readMetrics(Request request, Response response) {
+        final var metrics = new JSONObject();
+        sources.forEach((name, source) -> metrics.put(name, source.get()));
+
+        return metrics;
+    }
+}
@@ -0,0 +1,112 @@
+package com.manning.apisecurityinaction.controller;
+
+import com.lambdaworks.crypto.SCryptUtil;
+import org.json.JSONObject;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs scrypt hashing on a dedicated, bounded pool so bursts of logins cannot occupy every
+ * Jetty thread. When the queue is full the task is rejected with a
+ * {@link RejectedExecutionException}, which {@code Main} maps to 503.
+ */
+public class PasswordHasher {
+
+    private static final int N = 32768;
+    private static final int R = 8;
+    private static final int P = 1;
+    private static final long BYTES_PER_HASH = 128L * N * R;
+
+    private final ThreadPoolExecutor executor;
+    private final int queueCapacity;
+    private final LongAdder hashCount = new LongAdder();
+    private final LongAdder hashNanos = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    public PasswordHasher(final int threads, final int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+        final var threadId = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                runnable -> {
+                    final var thread = new Thread(runnable, "scrypt-" + threadId.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    public static PasswordHasher fromSystemProperties() {
+        final var runtime = Runtime.getRuntime();
+        final var byMemory = (int) Math.max(1, runtime.maxMemory() / 4 / BYTES_PER_HASH);
+        final var defaultThreads = Math.min(runtime.availableProcessors(), byMemory);
+
+        return new PasswordHasher(
+                Integer.getInteger("natter.scrypt.threads", defaultThreads),
+                Integer.getInteger("natter.scrypt.queue", 64)
+        );
+    }
+
+    public String hash(final String password) {
+        return submit(() -> SCryptUtil.scrypt(password, N, R, P));
+    }
+
+    public boolean check(final String password, final String hash) {
+        return submit(() -> SCryptUtil.check(password, hash));
+    }
+
+    public JSONObject stats() {
+        final var count = hashCount.sum();
+        return new JSONObject()
+                .put("threads", executor.getMaximumPoolSize())
+                .put("active", executor.getActiveCount())
+                .put("queueDepth", executor.getQueue().size())
+                .put("queueCapacity", queueCapacity)
+                .put("hashes", count)
+                .put("rejected", rejected.sum())
+                .put("meanHashMillis", count == 0 ? 0.0 : hashNanos.sum() / (double) count / 1_000_000);
+    }
+
+    private <T> T submit(final Callable<T> task) {
+        final Future<T> future;
+        try {
+            future = executor.submit(() -> {
+                final var start = System.nanoTime();
+                try {
+                    return task.call();
+                } finally {
+                    hashNanos.add(System.nanoTime() - start);
+                    hashCount.increment();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            throw e;
+        }
+
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            // Rethrow as if hashed on the caller's thread, so a malformed hash is still a 400
+            final var cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+}
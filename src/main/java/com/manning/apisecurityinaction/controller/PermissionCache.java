@@ -0,0 +1,88 @@
+package com.manning.apisecurityinaction.controller;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import org.dalesbred.Database;
+import org.json.JSONObject;
+
+import java.time.Duration;
+import java.util.Objects;
+
+/**
+ * Caches the permissions string for each (space, user) pair, including the empty string for
+ * users with no permissions. Writes on this node invalidate their entry directly; the TTL
+ * bounds how long other nodes sharing the database can serve a stale entry.
+ */
+public class PermissionCache {
+
+    private final LoadingCache<Key, String> perms;
+
+    public PermissionCache(final Database database, final long maximumSize, final Duration timeToLive) {
+        this.perms = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(timeToLive)
+                .recordStats()
+                .build(new CacheLoader<>() {
+                    @Override
+                    public String load(final Key key) {
+                        return database.findOptional(String.class,
+                                "SELECT perms FROM permissions WHERE space_id = ? AND user_id = ?",
+                                key.spaceId, key.userId
+                        ).orElse("");
+                    }
+                });
+    }
+
+    public static PermissionCache fromSystemProperties(final Database database) {
+        return new PermissionCache(database,
+                Long.getLong("natter.perms.cache.size", 100_000),
+                Duration.ofSeconds(Long.getLong("natter.perms.cache.ttl", 30))
+        );
+    }
+
+    public String getPermissions(final long spaceId, final String userId) {
+        return perms.getUnchecked(new Key(spaceId, userId));
+    }
+
+    public void invalidate(final long spaceId, final String userId) {
+        perms.invalidate(new Key(spaceId, userId));
+    }
+
+    public JSONObject stats() {
+        final var stats = perms.stats();
+        return new JSONObject()
+                .put("size", perms.size())
+                .put("hits", stats.hitCount())
+                .put("misses", stats.missCount())
+                .put("hitRate", stats.hitRate())
+                .put("evictions", stats.evictionCount());
+    }
+
+    private static class Key {
+        private final long spaceId;
+        private final String userId;
+
+        private Key(final long spaceId, final String userId) {
+            this.spaceId = spaceId;
+            this.userId = userId;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final var key = (Key) o;
+            return spaceId == key.spaceId && userId.equals(key.userId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(spaceId, userId);
+        }
+    }
+}
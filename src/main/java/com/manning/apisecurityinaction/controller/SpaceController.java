@@ -2,19 +2,46 @@ package com.manning.apisecurityinaction.controller;
 
 import com.manning.apisecurityinaction.model.Message;
 import com.manning.apisecurityinaction.model.Space;
+import com.manning.apisecurityinaction.token.Base64URL;
 import org.dalesbred.Database;
+import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 import spark.Request;
 import spark.Response;
 
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
 import java.util.List;
 
 public class SpaceController {
 
+    private static final int DEFAULT_PAGE_SIZE = 50;
+    private static final int MAX_PAGE_SIZE = 100;
+    private static final int MAX_BATCH_SIZE = 1000;
+
     private final Database database;
+    private final IdAllocator spaceIds;
+    private final IdAllocator msgIds;
+    private final PermissionCache permissionCache;
+    private final MessageCache messageCache;
+    private final SpaceVersions spaceVersions;
+    private final MessageBroker messageBroker;
 
-    public SpaceController(final Database database) {
+    public SpaceController(final Database database, final IdAllocator spaceIds, final IdAllocator msgIds,
+                           final PermissionCache permissionCache, final MessageCache messageCache,
+                           final SpaceVersions spaceVersions, final MessageBroker messageBroker) {
         this.database = database;
+        this.spaceIds = spaceIds;
+        this.msgIds = msgIds;
+        this.permissionCache = permissionCache;
+        this.messageCache = messageCache;
+        this.spaceVersions = spaceVersions;
+        this.messageBroker = messageBroker;
     }
 
     public JSONObject createSpace(Request request, Response response) {
@@ -38,9 +65,8 @@ public class SpaceController {
             throw new IllegalArgumentException("owner must match authenticated user");
         }
 
-        return database.withTransaction(tx -> {
-            var spaceId = database.findUniqueLong("SELECT NEXT VALUE FOR space_id_seq;");
-
+        var spaceId = spaceIds.next();
+        database.withVoidTransaction(tx -> {
             database.updateUnique(
                     "INSERT INTO spaces(space_id, name, owner) " +
                             "VALUES(?, ?, ?);",
@@ -52,75 +78,235 @@ public class SpaceController {
                             "VALUES(?, ?, ?)",
                     spaceId, owner, "rwd"
             );
+        });
+        permissionCache.invalidate(spaceId, owner);
+        spaceVersions.spaceCreated(spaceId);
 
-            response.status(201);
-            response.header("Location", "/spaces/" + spaceId);
+        response.status(201);
+        response.header("Location", "/spaces/" + spaceId);
 
-            return new JSONObject()
-                    .put("name", spaceName)
-                    .put("uri", "/spaces/" + spaceId);
-        });
+        return new JSONObject()
+                .put("name", spaceName)
+                .put("uri", "/spaces/" + spaceId);
     }
 
     public JSONObject postMessage(final Request request, final Response response) {
         var spaceId = Long.parseLong(request.params(":spaceId"));
         var json = new JSONObject(request.body());
         var user = json.getString("author");
-        if (!user.matches("[a-zA-Z0-9]{0,29}")) {
-            throw new IllegalArgumentException("invalid username");
-        }
         var message = json.getString("message");
-        if (message.length() > 1024) {
-            throw new IllegalArgumentException("message is too long");
+        validateMessage(user, message);
+
+        var msgTime = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+        var msgId = msgIds.next();
+        database.updateUnique(
+                "INSERT INTO messages(space_id, msg_id, msg_time," +
+                        "author, msg_text) " +
+                        "VALUES(?, ?, ?, ?, ?)",
+                spaceId, msgId, msgTime, user, message);
+        var posted = new Message(spaceId, msgId, user, msgTime, message);
+        messageCache.put(spaceId, posted);
+        spaceVersions.spaceChanged(spaceId);
+        messageBroker.publish(spaceId, posted);
+
+        response.status(201);
+        var uri = "/spaces/" + spaceId + "/messages/" + msgId;
+        response.header("Location", uri);
+        return new JSONObject().put("uri", uri);
+    }
+
+    /**
+     * Posts an array of messages with the same rules as {@link #postMessage}. Valid messages are
+     * inserted in one transaction with a single JDBC batch, and the response lists a URI or an
+     * error for each item in request order.
+     */
+    public JSONObject postMessages(final Request request, final Response response) {
+        var spaceId = Long.parseLong(request.params(":spaceId"));
+        var items = new JSONArray(request.body());
+        if (items.length() > MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException("batch cannot contain more than " + MAX_BATCH_SIZE + " messages");
         }
 
-        return database.withTransaction(tx -> {
-            var msgId = database.findUniqueLong(
-                    "SELECT NEXT VALUE FOR msg_id_seq;");
-            database.updateUnique(
-                    "INSERT INTO messages(space_id, msg_id, msg_time," +
-                            "author, msg_text) " +
-                            "VALUES(?, ?, current_timestamp, ?, ?)",
-                    spaceId, msgId, user, message);
-
-            response.status(201);
-            var uri = "/spaces/" + spaceId + "/messages/" + msgId;
-            response.header("Location", uri);
-            return new JSONObject().put("uri", uri);
-        });
+        var msgTime = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+        var results = new JSONArray();
+        var valid = new ArrayList<Integer>();
+        for (var i = 0; i < items.length(); i++) {
+            try {
+                var json = items.getJSONObject(i);
+                validateMessage(json.getString("author"), json.getString("message"));
+                valid.add(i);
+                results.put(i, JSONObject.NULL);
+            } catch (IllegalArgumentException | JSONException e) {
+                results.put(i, new JSONObject().put("error", e.getMessage()));
+            }
+        }
+
+        var posted = new ArrayList<Message>(valid.size());
+        if (!valid.isEmpty()) {
+            var ids = msgIds.next(valid.size());
+            database.withVoidTransaction(tx -> {
+                var rows = new ArrayList<List<?>>(valid.size());
+                for (var j = 0; j < valid.size(); j++) {
+                    var json = items.getJSONObject(valid.get(j));
+                    var msgId = ids[j];
+                    var author = json.getString("author");
+                    var text = json.getString("message");
+                    rows.add(List.of(spaceId, msgId, msgTime, author, text));
+                    posted.add(new Message(spaceId, msgId, author, msgTime, text));
+                }
+                database.updateBatch(
+                        "INSERT INTO messages(space_id, msg_id, msg_time, author, msg_text) " +
+                                "VALUES(?, ?, ?, ?, ?)",
+                        rows);
+            });
+        }
+
+        for (var j = 0; j < posted.size(); j++) {
+            var message = posted.get(j);
+            messageCache.put(spaceId, message);
+            messageBroker.publish(spaceId, message);
+            results.put(valid.get(j), new JSONObject()
+                    .put("uri", "/spaces/" + spaceId + "/messages/" + message.getMsgId()));
+        }
+        if (!posted.isEmpty()) {
+            spaceVersions.spaceChanged(spaceId);
+        }
+
+        response.status(200);
+        return new JSONObject().put("results", results);
     }
 
-    public Message readMessage(final Request request, final Response response) {
+    public byte[] readMessage(final Request request, final Response response) {
         var spaceId = Long.parseLong(request.params(":spaceId"));
         var messageId = Long.parseLong(request.params(":msgId"));
 
-        final Message message = database.findUnique(Message.class,
-                "SELECT space_id as spaceId, msg_id as msgId, author, msg_time, msg_text " +
-                        "FROM messages " +
-                        "WHERE msg_id = ? AND space_id = ?",
-                messageId, spaceId);
+        var rendered = messageCache.get(spaceId, messageId);
+        if (rendered == null) {
+            final Message message = database.findUnique(Message.class,
+                    "SELECT space_id as spaceId, msg_id as msgId, author, msg_time, msg_text " +
+                            "FROM messages " +
+                            "WHERE msg_id = ? AND space_id = ?",
+                    messageId, spaceId);
+            rendered = messageCache.put(spaceId, message);
+        }
 
         response.status(200);
-        return message;
+        return rendered;
     }
 
-    public List<Message> findMessages(final Request request, final Response response) {
+    public String findMessages(final Request request, final Response response) {
         var spaceId = Long.parseLong(request.params(":spaceId"));
+        var limit = Integer.parseInt(request.queryParamOrDefault("limit", String.valueOf(DEFAULT_PAGE_SIZE)));
+        if (limit < 1 || limit > MAX_PAGE_SIZE) {
+            throw new IllegalArgumentException("limit must be between 1 and " + MAX_PAGE_SIZE);
+        }
+        if (spaceVersions.spaceNotModified(spaceId, request, response)) {
+            return "";
+        }
 
-        List<Message> messages = database.findAll(Message.class,
-                "SELECT space_id as spaceId, msg_id as msgId, author, msg_time, msg_text " +
-                        "FROM messages " +
-                        "WHERE space_id = ?",
-                spaceId
-        );
-        return messages;
+        var sql = new StringBuilder("SELECT space_id as spaceId, msg_id as msgId, author, msg_time, msg_text " +
+                "FROM messages WHERE space_id = ?");
+        var args = new ArrayList<>();
+        args.add(spaceId);
+        var cursor = request.queryParams("cursor");
+        if (cursor != null) {
+            // IDs come from per-node blocks, so only (msg_time, msg_id) orders messages over time
+            var position = decodeCursor(cursor);
+            sql.append(" AND (msg_time > ? OR (msg_time = ? AND msg_id > ?))");
+            args.add(position.time);
+            args.add(position.time);
+            args.add(position.msgId);
+        }
+        var since = parseInstant(request.queryParams("since"));
+        if (since != null) {
+            sql.append(" AND msg_time >= ?");
+            args.add(since);
+        }
+        var until = parseInstant(request.queryParams("until"));
+        if (until != null) {
+            sql.append(" AND msg_time < ?");
+            args.add(until);
+        }
+        sql.append(" ORDER BY msg_time, msg_id LIMIT ?");
+        args.add(limit);
+
+        // A page is at most MAX_PAGE_SIZE rows, so read it all and release the connection
+        // before anything is written to the client
+        var messages = database.findAll(Message.class, sql.toString(), args.toArray());
+        if (messages.size() == limit) {
+            var last = messages.get(messages.size() - 1);
+            var next = encodeCursor(last.getTime(), last.getMsgId());
+            response.header("Link", "<" + nextPageUri(request, next) + ">; rel=\"next\"");
+        }
+
+        return messages.toString();
     }
 
-    public List<Space> getSpaces(final Request request, final Response response) {
+    public String getSpaces(final Request request, final Response response) {
+        if (spaceVersions.spacesNotModified(request, response)) {
+            return "";
+        }
+
         return database.findAll(Space.class,
                 "SELECT space_id, owner, name " +
                         "FROM spaces"
-        );
+        ).toString();
+    }
+
+    private static void validateMessage(final String author, final String message) {
+        if (!author.matches("[a-zA-Z0-9]{0,29}")) {
+            throw new IllegalArgumentException("invalid username");
+        }
+        if (message.length() > 1024) {
+            throw new IllegalArgumentException("message is too long");
+        }
+    }
+
+    private static Instant parseInstant(final String value) {
+        if (value == null) {
+            return null;
+        }
+
+        try {
+            return Instant.parse(value);
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("invalid timestamp: " + value);
+        }
+    }
+
+    private static String nextPageUri(final Request request, final String cursor) {
+        var uri = new StringBuilder(request.pathInfo()).append("?cursor=").append(cursor);
+        for (var param : List.of("limit", "since", "until")) {
+            var value = request.queryParams(param);
+            if (value != null) {
+                uri.append('&').append(param).append('=').append(URLEncoder.encode(value, StandardCharsets.UTF_8));
+            }
+        }
+
+        return uri.toString();
+    }
+
+    private static String encodeCursor(final Instant time, final long msgId) {
+        return Base64URL.encode((time + "/" + msgId).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Position decodeCursor(final String cursor) {
+        try {
+            var parts = new String(Base64URL.decode(cursor), StandardCharsets.UTF_8).split("/", 2);
+            return new Position(Instant.parse(parts[0]), Long.parseLong(parts[1]));
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("invalid cursor");
+        }
+    }
+
+    private static class Position {
+        private final Instant time;
+        private final long msgId;
+
+        private Position(final Instant time, final long msgId) {
+            this.time = time;
+            this.msgId = msgId;
+        }
     }
 
     public JSONObject addMember(Request request, Response response) {
@@ -138,6 +324,8 @@ public class SpaceController {
                         "VALUES(?, ?, ?)",
                 spaceId, userToAdd, perms
         );
+        permissionCache.invalidate(spaceId, userToAdd);
+        spaceVersions.spaceChanged(spaceId);
 
         response.status(200);
         return new JSONObject()
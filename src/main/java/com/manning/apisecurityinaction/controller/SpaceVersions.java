@@ -0,0 +1,108 @@
+package com.manning.apisecurityinaction.controller;
+
+import com.google.common.hash.Hashing;
+import org.json.JSONObject;
+import spark.Request;
+import spark.Response;
+
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Version counters for the list of spaces and for each space, bumped after every committed write
+ * that changes what a GET on them returns. Strong ETags are built from the version, a random
+ * per-process epoch (so tags issued before a restart never match) and a hash of the query
+ * string, since each page or filter is a separate representation. A matching
+ * {@code If-None-Match} is answered with 304 before any query runs.
+ */
+public class SpaceVersions {
+
+    private static final String CACHE_CONTROL = "private, no-cache";
+
+    private final String epoch = Long.toString(new SecureRandom().nextLong() & Long.MAX_VALUE, 36);
+    private final AtomicLong spacesVersion = new AtomicLong();
+    private final ConcurrentMap<Long, AtomicLong> versions = new ConcurrentHashMap<>();
+    private final LongAdder notModified = new LongAdder();
+    private final LongAdder modified = new LongAdder();
+
+    public void spaceCreated(final long spaceId) {
+        spacesVersion.incrementAndGet();
+        spaceChanged(spaceId);
+    }
+
+    public void spaceChanged(final long spaceId) {
+        versions.computeIfAbsent(spaceId, id -> new AtomicLong()).incrementAndGet();
+    }
+
+    /**
+     * Sets the ETag and caching headers for the list of spaces and returns true, with the
+     * status set to 304, if the client already has this version.
+     */
+    public boolean spacesNotModified(final Request request, final Response response) {
+        return notModified(request, response, "s" + spacesVersion.get());
+    }
+
+    /**
+     * Sets the ETag and caching headers for a resource within a space and returns true, with the
+     * status set to 304, if the client already has this version.
+     */
+    public boolean spaceNotModified(final long spaceId, final Request request, final Response response) {
+        final var version = versions.get(spaceId);
+        return notModified(request, response, spaceId + "." + (version == null ? 0 : version.get()));
+    }
+
+    public JSONObject stats() {
+        final var total = notModified.sum() + modified.sum();
+        return new JSONObject()
+                .put("spaces", versions.size())
+                .put("notModified", notModified.sum())
+                .put("modified", modified.sum())
+                .put("notModifiedRate", total == 0 ? 0.0 : notModified.sum() / (double) total);
+    }
+
+    private boolean notModified(final Request request, final Response response, final String version) {
+        final var etag = etag(request, version);
+        // Replace, not append to, the no-store policy set by the security headers filter
+        response.raw().setHeader("ETag", etag);
+        response.raw().setHeader("Cache-Control", CACHE_CONTROL);
+
+        if (matches(request.headers("If-None-Match"), etag)) {
+            notModified.increment();
+            response.status(304);
+            return true;
+        }
+
+        modified.increment();
+        return false;
+    }
+
+    private String etag(final Request request, final String version) {
+        final var query = request.queryString();
+        final var variant = query == null || query.isEmpty() ? ""
+                : "." + Hashing.murmur3_128().hashString(query, StandardCharsets.UTF_8);
+
+        return '"' + epoch + "." + version + variant + '"';
+    }
+
+    private static boolean matches(final String ifNoneMatch, final String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+
+        for (var candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(etag)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
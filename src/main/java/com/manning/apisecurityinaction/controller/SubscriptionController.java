@@ -0,0 +1,135 @@
+package com.manning.apisecurityinaction.controller;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.manning.apisecurityinaction.model.Message;
+import com.manning.apisecurityinaction.token.Base64URL;
+import org.dalesbred.Database;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketClose;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketConnect;
+import org.eclipse.jetty.websocket.api.annotations.WebSocket;
+import org.json.JSONObject;
+import spark.Request;
+import spark.Response;
+
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Pushes new messages in a space over a WebSocket. WebSocket upgrades bypass the Spark filter
+ * chain, so a client first calls {@code POST /spaces/:spaceId/subscriptions} through the usual
+ * authentication and permission filters to get a short-lived, single-use ticket, then connects
+ * to {@code /subscribe?ticket=...}. If the ticket request includes {@code lastId}, messages
+ * after it in {@code (msg_time, msg_id)} order are replayed before live ones; a client further
+ * behind than {@code natter.subscribe.replay} messages is disconnected and should page through
+ * {@code GET /spaces/:spaceId/messages} first.
+ */
+@WebSocket
+public class SubscriptionController {
+
+    private final Database database;
+    private final MessageBroker messageBroker;
+    private final int replayLimit;
+    private final Cache<String, Ticket> tickets;
+    private final ConcurrentMap<Session, MessageBroker.Subscriber> subscribers = new ConcurrentHashMap<>();
+    private final SecureRandom secureRandom = new SecureRandom();
+
+    public SubscriptionController(final Database database, final MessageBroker messageBroker,
+                                  final int replayLimit, final Duration ticketLifetime) {
+        this.database = database;
+        this.messageBroker = messageBroker;
+        this.replayLimit = replayLimit;
+        this.tickets = CacheBuilder.newBuilder()
+                .maximumSize(100_000)
+                .expireAfterWrite(ticketLifetime)
+                .build();
+    }
+
+    public static SubscriptionController fromSystemProperties(final Database database,
+                                                              final MessageBroker messageBroker) {
+        return new SubscriptionController(database, messageBroker,
+                Integer.getInteger("natter.subscribe.replay", 500),
+                Duration.ofSeconds(Long.getLong("natter.subscribe.ticketSeconds", 30))
+        );
+    }
+
+    public JSONObject issueTicket(final Request request, final Response response) {
+        var spaceId = Long.parseLong(request.params(":spaceId"));
+        var json = request.body().isEmpty() ? new JSONObject() : new JSONObject(request.body());
+        var lastId = json.optLong("lastId", -1L);
+
+        var bytes = new byte[20];
+        secureRandom.nextBytes(bytes);
+        var ticket = Base64URL.encode(bytes);
+        tickets.put(ticket, new Ticket(spaceId, lastId));
+
+        response.status(201);
+        return new JSONObject()
+                .put("ticket", ticket)
+                .put("uri", "/subscribe?ticket=" + ticket);
+    }
+
+    @OnWebSocketConnect
+    public void onConnect(final Session session) {
+        var values = session.getUpgradeRequest().getParameterMap().get("ticket");
+        var ticket = values == null || values.size() != 1 ? null : tickets.asMap().remove(values.get(0));
+        if (ticket == null) {
+            session.close(StatusCode.POLICY_VIOLATION, "invalid ticket");
+            return;
+        }
+
+        var subscriber = messageBroker.subscribe(ticket.spaceId, session);
+        subscribers.put(session, subscriber);
+        if (ticket.lastId < 0) {
+            subscriber.start(List.of());
+            return;
+        }
+
+        // IDs come from per-node blocks, so resume from the last message's (msg_time, msg_id)
+        var last = database.findOptional(Instant.class,
+                "SELECT msg_time FROM messages WHERE space_id = ? AND msg_id = ?", ticket.spaceId, ticket.lastId);
+        if (last.isEmpty()) {
+            subscribers.remove(session);
+            messageBroker.unsubscribe(subscriber);
+            session.close(StatusCode.POLICY_VIOLATION, "unknown lastId");
+            return;
+        }
+        var replay = database.findAll(Message.class,
+                "SELECT space_id as spaceId, msg_id as msgId, author, msg_time, msg_text " +
+                        "FROM messages " +
+                        "WHERE space_id = ? AND (msg_time > ? OR (msg_time = ? AND msg_id > ?)) " +
+                        "ORDER BY msg_time, msg_id LIMIT ?",
+                ticket.spaceId, last.get(), last.get(), ticket.lastId, replayLimit + 1);
+        if (replay.size() > replayLimit) {
+            subscribers.remove(session);
+            messageBroker.unsubscribe(subscriber);
+            session.close(StatusCode.POLICY_VIOLATION, "too far behind to resume");
+            return;
+        }
+        subscriber.start(replay);
+    }
+
+    @OnWebSocketClose
+    public void onClose(final Session session, final int statusCode, final String reason) {
+        var subscriber = subscribers.remove(session);
+        if (subscriber != null) {
+            messageBroker.unsubscribe(subscriber);
+        }
+    }
+
+    private static class Ticket {
+        private final long spaceId;
+        private final long lastId;
+
+        private Ticket(final long spaceId, final long lastId) {
+            this.spaceId = spaceId;
+            this.lastId = lastId;
+        }
+    }
+}
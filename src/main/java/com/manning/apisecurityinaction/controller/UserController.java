@@ -1,6 +1,5 @@
 package com.manning.apisecurityinaction.controller;
 
-import com.lambdaworks.crypto.SCryptUtil;
 import org.dalesbred.Database;
 import org.json.JSONObject;
 import spark.Filter;
@@ -9,14 +8,27 @@ import spark.Response;
 
 import java.nio.charset.StandardCharsets;
 import java.util.Base64;
+import java.util.Set;
 
 import static spark.Spark.halt;
 
 public class UserController {
     private final Database database;
+    private final PasswordHasher passwordHasher;
+    private final PermissionCache permissionCache;
+    private final CredentialCache credentialCache;
 
-    public UserController(final Database database) {
+    public UserController(final Database database, final PasswordHasher passwordHasher,
+                          final PermissionCache permissionCache) {
+        this(database, passwordHasher, permissionCache, null);
+    }
+
+    public UserController(final Database database, final PasswordHasher passwordHasher,
+                          final PermissionCache permissionCache, final CredentialCache credentialCache) {
         this.database = database;
+        this.passwordHasher = passwordHasher;
+        this.permissionCache = permissionCache;
+        this.credentialCache = credentialCache;
     }
 
     public JSONObject registerUser(Request request, Response response) {
@@ -28,7 +40,7 @@ public class UserController {
             throw new IllegalArgumentException("password must be at least at 8 characters");
         }
 
-        var hash = SCryptUtil.scrypt(password, 32768, 8, 1);
+        var hash = passwordHasher.hash(password);
         database.updateUnique("INSERT INTO users(user_id, pw_hash) VALUES(?, ?)", username, hash);
 
         response.status(201);
@@ -53,11 +65,28 @@ public class UserController {
         var username = components[0];
         var password = components[1];
         var hash = database.findOptional(String.class, "SELECT pw_hash FROM users WHERE user_id = ?", username);
-        if (hash.isPresent() && SCryptUtil.check(password, hash.get())) {
+        if (hash.isPresent() && checkPassword(username, password, hash.get())) {
             request.attribute("subject", username);
         }
     }
 
+    private boolean checkPassword(final String username, final String password, final String hash) {
+        if (credentialCache == null) {
+            return passwordHasher.check(password, hash);
+        }
+
+        if (credentialCache.isVerified(username, password, hash)) {
+            return true;
+        }
+
+        if (!passwordHasher.check(password, hash)) {
+            return false;
+        }
+        credentialCache.markVerified(username, password, hash);
+
+        return true;
+    }
+
     public void requireAuthentication(Request request, Response response) {
         if (request.attribute("subject") == null) {
             response.header("WWW-Authenticate", "Bearer");
@@ -65,6 +94,16 @@ public class UserController {
         }
     }
 
+    public Filter requireAdmin(final Set<String> admins) {
+        return ((request, response) -> {
+            requireAuthentication(request, response);
+
+            if (!admins.contains((String) request.attribute("subject"))) {
+                halt(403);
+            }
+        });
+    }
+
     public Filter requirePermissions(String method, String permissions) {
         return ((request, response) -> {
             if (!method.equalsIgnoreCase(request.requestMethod())) {
@@ -76,10 +115,7 @@ public class UserController {
             var spaceId = Long.parseLong(request.params(":spaceId"));
             var username = (String) request.attribute("subject");
 
-            var perms = database.findOptional(String.class,
-                    "SELECT perms FROM permissions WHERE space_id = ? AND user_id = ?",
-                    spaceId, username
-            ).orElse("");
+            var perms = permissionCache.getPermissions(spaceId, username);
 
             if (!perms.contains(permissions)) {
                 halt(403);
@@ -18,6 +18,15 @@ public class Message {
         this.time = time;
         this.message = message;
     }
+
+    public long getMsgId() {
+        return msgId;
+    }
+
+    public Instant getTime() {
+        return time;
+    }
+
     @Override
     public String toString() {
         JSONObject msg = new JSONObject();
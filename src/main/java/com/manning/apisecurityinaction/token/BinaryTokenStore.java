@@ -0,0 +1,160 @@
+package com.manning.apisecurityinaction.token;
+
+import software.pando.crypto.nacl.SecretBox;
+import spark.Request;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.Key;
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Optional;
+
+/**
+ * Stateless tokens in a compact binary layout sealed with a NaCl {@link SecretBox}:
+ *
+ * <pre>
+ * version (1) | expiry epoch seconds (8) | token ID (16) | subject length (2) | subject |
+ * attribute count (2) | { key length (2) | key | value length (2) | value }*
+ * </pre>
+ *
+ * Strings are UTF-8. The token is the Base64URL encoding of the nonce followed by the
+ * ciphertext and tag, so decoding needs no JSON parsing. Revocation uses a
+ * {@link RevocationList} keyed by the token ID.
+ */
+public class BinaryTokenStore implements SecureTokenStore {
+
+    private static final byte VERSION = 1;
+    private static final int NONCE_LENGTH = 24;
+    private static final int ID_LENGTH = 16;
+
+    private final Key encryptionKey;
+    private final RevocationList revocationList;
+    private final SecureRandom secureRandom = new SecureRandom();
+
+    public BinaryTokenStore(final Key encryptionKey, final RevocationList revocationList) {
+        this.encryptionKey = encryptionKey;
+        this.revocationList = revocationList;
+    }
+
+    @Override
+    public String create(final Request request, final Token token) {
+        final var tokenId = new byte[ID_LENGTH];
+        secureRandom.nextBytes(tokenId);
+        final var subject = token.getUsername().getBytes(StandardCharsets.UTF_8);
+
+        var length = 1 + 8 + ID_LENGTH + 2 + subject.length + 2;
+        final var attributes = new byte[token.getAttributes().size() * 2][];
+        var i = 0;
+        for (final var attribute : token.getAttributes().entrySet()) {
+            attributes[i] = attribute.getKey().getBytes(StandardCharsets.UTF_8);
+            attributes[i + 1] = attribute.getValue().getBytes(StandardCharsets.UTF_8);
+            length += 4 + attributes[i].length + attributes[i + 1].length;
+            i += 2;
+        }
+
+        final var buffer = ByteBuffer.allocate(length)
+                .put(VERSION)
+                .putLong(token.getExpiry().getEpochSecond())
+                .put(tokenId);
+        putString(buffer, subject);
+        buffer.putShort(checkedLength(token.getAttributes().size()));
+        for (final byte[] attribute : attributes) {
+            putString(buffer, attribute);
+        }
+
+        final var box = SecretBox.encrypt(encryptionKey, buffer.array());
+        final var nonce = box.getNonce();
+        final var ciphertext = box.getCiphertextWithTag();
+        final var sealed = Arrays.copyOf(nonce, nonce.length + ciphertext.length);
+        System.arraycopy(ciphertext, 0, sealed, nonce.length, ciphertext.length);
+
+        return Base64URL.encode(sealed);
+    }
+
+    @Override
+    public Optional<Token> read(final Request request, final String tokenId) {
+        final ByteBuffer buffer;
+        try {
+            buffer = ByteBuffer.wrap(open(tokenId));
+        } catch (RuntimeException e) {
+            return Optional.empty();
+        }
+
+        try {
+            if (buffer.get() != VERSION) {
+                return Optional.empty();
+            }
+            final var expiry = Instant.ofEpochSecond(buffer.getLong());
+            final var id = new byte[ID_LENGTH];
+            buffer.get(id);
+            if (revocationList.isRevoked(Base64URL.encode(id), expiry)) {
+                return Optional.empty();
+            }
+
+            final var token = new Token(expiry, getString(buffer));
+            final var count = Short.toUnsignedInt(buffer.getShort());
+            final var attributes = new HashMap<String, String>(count * 2);
+            for (var i = 0; i < count; i++) {
+                attributes.put(getString(buffer), getString(buffer));
+            }
+            token.setAttributes(attributes);
+
+            return Optional.of(token);
+        } catch (BufferUnderflowException e) {
+            return Optional.empty();
+        }
+    }
+
+    @Override
+    public void revoke(final Request request, final String tokenId) {
+        try {
+            final var buffer = ByteBuffer.wrap(open(tokenId));
+            if (buffer.get() != VERSION) {
+                throw new IllegalArgumentException("Unsupported token version");
+            }
+            final var expiry = Instant.ofEpochSecond(buffer.getLong());
+            final var id = new byte[ID_LENGTH];
+            buffer.get(id);
+            revocationList.revoke(Base64URL.encode(id), expiry);
+        } catch (IllegalArgumentException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid token", e);
+        }
+    }
+
+    private byte[] open(final String tokenId) {
+        final var sealed = Base64URL.decode(tokenId);
+        if (sealed.length <= NONCE_LENGTH) {
+            throw new IllegalArgumentException("Invalid token");
+        }
+
+        return SecretBox.fromCombined(
+                Arrays.copyOf(sealed, NONCE_LENGTH),
+                Arrays.copyOfRange(sealed, NONCE_LENGTH, sealed.length)
+        ).decrypt(encryptionKey);
+    }
+
+    private static void putString(final ByteBuffer buffer, final byte[] value) {
+        buffer.putShort(checkedLength(value.length)).put(value);
+    }
+
+    private static String getString(final ByteBuffer buffer) {
+        final var value = new byte[Short.toUnsignedInt(buffer.getShort())];
+        buffer.get(value);
+
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    private static short checkedLength(final int length) {
+        if (length > 0xFFFF) {
+            throw new IllegalArgumentException("Token field too long");
+        }
+
+        return (short) length;
+    }
+}
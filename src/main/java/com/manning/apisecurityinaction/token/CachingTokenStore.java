@@ -0,0 +1,106 @@
+package com.manning.apisecurityinaction.token;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.json.JSONObject;
+import spark.Request;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+/**
+ * Read-through cache in front of a token store, keyed by the SHA-256 hash of the token ID.
+ * Entries are never served past the token's own expiry, and revoking a token evicts it here
+ * before the delegate is told. Revoked hashes are kept as tombstones for the cache TTL, so a
+ * read that was already in flight cannot put a revoked token back. Revocations are also passed
+ * to a broadcaster so other nodes can call {@link #invalidate(String)} with the same hash; the
+ * default one does nothing, so a token revoked on another node is served from this node's cache
+ * until its entry expires, up to {@code natter.token.cache.ttl} seconds.
+ */
+public class CachingTokenStore implements SecureTokenStore {
+
+    private final SecureTokenStore delegate;
+    private final Cache<String, Token> cache;
+    private final Cache<String, Boolean> revoked;
+    private final Consumer<String> revocationBroadcaster;
+
+    public CachingTokenStore(final SecureTokenStore delegate, final long maximumSize, final Duration maximumAge,
+                             final Consumer<String> revocationBroadcaster) {
+        this.delegate = delegate;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(maximumAge)
+                .recordStats()
+                .build();
+        this.revoked = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(maximumAge)
+                .build();
+        this.revocationBroadcaster = revocationBroadcaster;
+    }
+
+    public static CachingTokenStore fromSystemProperties(final SecureTokenStore delegate) {
+        return new CachingTokenStore(delegate,
+                Long.getLong("natter.token.cache.size", 100_000),
+                Duration.ofSeconds(Long.getLong("natter.token.cache.ttl", 60)),
+                hash -> { });
+    }
+
+    @Override
+    public String create(final Request request, final Token token) {
+        return delegate.create(request, token);
+    }
+
+    @Override
+    public Optional<Token> read(final Request request, final String tokenId) {
+        final var key = hash(tokenId);
+        final var cached = cache.getIfPresent(key);
+        if (cached != null) {
+            if (Instant.now().isBefore(cached.getExpiry())) {
+                return Optional.of(cached);
+            }
+            cache.invalidate(key);
+        }
+
+        final var token = delegate.read(request, tokenId);
+        token.filter(t -> Instant.now().isBefore(t.getExpiry()))
+                .ifPresent(t -> {
+                    cache.put(key, t);
+                    // Checked after the put: a revoke either left its tombstone by now or has
+                    // yet to invalidate, which will remove this entry
+                    if (revoked.getIfPresent(key) != null) {
+                        cache.invalidate(key);
+                    }
+                });
+
+        return token;
+    }
+
+    @Override
+    public void revoke(final Request request, final String tokenId) {
+        final var key = hash(tokenId);
+        invalidate(key);
+        delegate.revoke(request, tokenId);
+        revocationBroadcaster.accept(key);
+    }
+
+    public void invalidate(final String tokenHash) {
+        revoked.put(tokenHash, Boolean.TRUE);
+        cache.invalidate(tokenHash);
+    }
+
+    public JSONObject stats() {
+        final var stats = cache.stats();
+        return new JSONObject()
+                .put("size", cache.size())
+                .put("hits", stats.hitCount())
+                .put("misses", stats.missCount())
+                .put("hitRate", stats.hitRate());
+    }
+
+    private static String hash(final String tokenId) {
+        return Base64URL.encode(CookieTokenStore.sha256(tokenId));
+    }
+}
@@ -8,6 +8,15 @@ import java.security.NoSuchAlgorithmException;
 import java.util.Optional;
 
 public class CookieTokenStore implements SecureTokenStore {
+
+    private static final ObjectPool<MessageDigest> SHA256 = new ObjectPool<>(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException(nsae);
+        }
+    }, Runtime.getRuntime().availableProcessors() * 4);
+
     @Override
     public String create(final Request request, final Token token) {
         var session = request.session(false);
@@ -60,11 +69,6 @@ public class CookieTokenStore implements SecureTokenStore {
     }
 
     static byte[] sha256(String tokenId) {
-        try {
-            var sha256 = MessageDigest.getInstance("SHA-256");
-            return sha256.digest(tokenId.getBytes(StandardCharsets.UTF_8));
-        } catch (NoSuchAlgorithmException nsae) {
-            throw new IllegalStateException(nsae);
-        }
+        return SHA256.apply(sha256 -> sha256.digest(tokenId.getBytes(StandardCharsets.UTF_8)));
     }
 }
@@ -1,10 +1,16 @@
 package com.manning.apisecurityinaction.token;
 
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
 import org.dalesbred.Database;
 import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import spark.Request;
 
+import java.nio.charset.StandardCharsets;
 import java.security.SecureRandom;
+import java.time.Duration;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.HashMap;
@@ -12,17 +18,80 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
-
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tokens stored as hashed rows in the {@code tokens} table. A Bloom filter of known token hashes
+ * rejects unknown tokens without a query. The filter only learns of tokens created by this
+ * process between rebuilds, so when several nodes share the database a token created on another
+ * node is rejected here until the next rebuild; disable the filter
+ * ({@code natter.token.filter.enabled=false}) for multi-node deployments.
+ */
 public class DatabaseTokenStore implements SecureTokenStore {
 
+    private static final Logger LOG = LoggerFactory.getLogger(DatabaseTokenStore.class);
+    private static final double FILTER_FPP = 0.01;
+
     private final Database database;
     private final SecureRandom secureRandom;
-
-    public DatabaseTokenStore(final Database database) {
+    private final long minimumExpectedTokens;
+    private volatile BloomFilter<CharSequence> knownTokens;
+    private volatile BloomFilter<CharSequence> rebuilding;
+    private volatile long filterExpectedTokens;
+    private volatile long lastRebuildMillis;
+    private final boolean filterEnabled;
+    private final LongAdder filterRejections = new LongAdder();
+    private final int sweepChunkSize;
+    private final long sweepPauseMillis;
+    private final LongAdder sweptTokens = new LongAdder();
+    private volatile long lastSweepMillis;
+    private volatile long lastSweepCount;
+    private final LongAdder sweepFailures = new LongAdder();
+    private final LongAdder rebuildFailures = new LongAdder();
+
+    public DatabaseTokenStore(final Database database, final boolean filterEnabled, final long minimumExpectedTokens,
+                              final Duration rebuildInterval, final int sweepChunkSize, final Duration sweepPause,
+                              final Duration sweepInterval) {
         this.database = database;
         this.secureRandom = new SecureRandom();
-        Executors.newSingleThreadScheduledExecutor()
-                .scheduleAtFixedRate(this::deleteExpiredTokens, 10, 10, TimeUnit.MINUTES);
+        this.filterEnabled = filterEnabled;
+        this.minimumExpectedTokens = minimumExpectedTokens;
+        this.sweepChunkSize = sweepChunkSize;
+        this.sweepPauseMillis = sweepPause.toMillis();
+        rebuildFilter();
+        final var executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final var thread = new Thread(runnable, "token-maintenance");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(() -> runMaintenance("sweep", sweepFailures, this::deleteExpiredTokens),
+                sweepInterval.toMillis(), sweepInterval.toMillis(), TimeUnit.MILLISECONDS);
+        executor.scheduleAtFixedRate(() -> runMaintenance("filter rebuild", rebuildFailures, this::rebuildFilter),
+                rebuildInterval.toMillis(), rebuildInterval.toMillis(), TimeUnit.MILLISECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(executor::shutdownNow, "token-maintenance-shutdown"));
+    }
+
+    public static DatabaseTokenStore fromSystemProperties(final Database database) {
+        return new DatabaseTokenStore(database,
+                Boolean.parseBoolean(System.getProperty("natter.token.filter.enabled", "true")),
+                Long.getLong("natter.token.filter.expected", 1_000_000),
+                Duration.ofMinutes(Long.getLong("natter.token.filter.rebuildMinutes", 10)),
+                Integer.getInteger("natter.token.sweep.chunk", 1000),
+                Duration.ofMillis(Long.getLong("natter.token.sweep.pauseMillis", 50)),
+                Duration.ofMinutes(Long.getLong("natter.token.sweep.intervalMinutes", 10)));
+    }
+
+    /**
+     * A scheduled task that throws is never run again, so failures are logged and counted here
+     * and the next run goes ahead as planned.
+     */
+    private static void runMaintenance(final String task, final LongAdder failures, final Runnable body) {
+        try {
+            body.run();
+        } catch (RuntimeException e) {
+            failures.increment();
+            LOG.warn("Token {} failed", task, e);
+        }
     }
 
     private String randomId() {
@@ -35,24 +104,39 @@ public class DatabaseTokenStore implements SecureTokenStore {
     @Override
     public String create(Request request, TokenStore.Token token) {
         final var tokenId = randomId();
+        final var tokenHash = hash(tokenId);
         final var attrs = new JSONObject(token.getAttributes()).toString();
 
         database.updateUnique(
                 "INSERT INTO tokens(token_id, user_id, expiry, attributes) " +
                         "VALUES(?, ?, ?, ?)",
-                hash(tokenId), token.getUsername(), token.getExpiry(), attrs
+                tokenHash, token.getUsername(), token.getExpiry(), attrs
         );
 
+        // The filter being rebuilt comes first: if it is swapped in after this read, the put
+        // below reaches it as knownTokens; if it is created after, its scan sees the new row
+        final var next = rebuilding;
+        if (next != null) {
+            next.put(tokenHash);
+        }
+        knownTokens.put(tokenHash);
+
         return tokenId;
     }
 
     @Override
     public Optional<Token> read(final Request request, final String tokenId) {
+        final var tokenHash = hash(tokenId);
+        if (filterEnabled && !knownTokens.mightContain(tokenHash)) {
+            filterRejections.increment();
+            return Optional.empty();
+        }
+
         return database.findOptional(this::readToken,
                 "SELECT user_id, expiry, attributes " +
                         "FROM tokens " +
                         "WHERE token_id = ?",
-                hash(tokenId)
+                tokenHash
         );
     }
 
@@ -61,8 +145,66 @@ public class DatabaseTokenStore implements SecureTokenStore {
         database.update("DELETE FROM tokens WHERE token_id = ?", hash(tokenId));
     }
 
+    /**
+     * Deletes expired tokens in chunks of {@code natter.token.sweep.chunk} rows, pausing between
+     * chunks, so no single statement holds locks on a large part of the table.
+     */
     public void deleteExpiredTokens() {
-        database.update("DELETE FROM tokens WHERE expiry < current_timestamp");
+        final var start = System.nanoTime();
+        var total = 0L;
+        try {
+            int deleted;
+            do {
+                deleted = database.update("DELETE FROM tokens WHERE expiry < current_timestamp LIMIT ?", sweepChunkSize);
+                total += deleted;
+                sweptTokens.add(deleted);
+                if (deleted == sweepChunkSize && sweepPauseMillis > 0) {
+                    Thread.sleep(sweepPauseMillis);
+                }
+            } while (deleted == sweepChunkSize);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lastSweepCount = total;
+            lastSweepMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Replaces the Bloom filter of known token hashes with one built from the unexpired rows,
+     * so expired and revoked tokens stop passing the filter. Tokens created while the scan is
+     * running are added to both filters.
+     */
+    public synchronized void rebuildFilter() {
+        final var start = System.nanoTime();
+        final var active = database.findUniqueLong("SELECT COUNT(*) FROM tokens WHERE expiry >= current_timestamp");
+        final var expected = Math.max(minimumExpectedTokens, active * 2);
+        final var next = BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8), expected, FILTER_FPP);
+        rebuilding = next;
+        try {
+            database.findAll(String.class, "SELECT token_id FROM tokens WHERE expiry >= current_timestamp")
+                    .forEach(next::put);
+            knownTokens = next;
+            filterExpectedTokens = expected;
+        } finally {
+            rebuilding = null;
+        }
+        lastRebuildMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    public JSONObject stats() {
+        final var filter = knownTokens;
+        return new JSONObject()
+                .put("filterExpectedInsertions", filterExpectedTokens)
+                .put("filterApproximateCount", filter.approximateElementCount())
+                .put("filterFalsePositiveRate", filter.expectedFpp())
+                .put("filterRejections", filterRejections.sum())
+                .put("filterRebuildMillis", lastRebuildMillis)
+                .put("filterRebuildFailures", rebuildFailures.sum())
+                .put("sweptTokens", sweptTokens.sum())
+                .put("lastSweepCount", lastSweepCount)
+                .put("lastSweepMillis", lastSweepMillis)
+                .put("sweepFailures", sweepFailures.sum());
     }
 
     private Token readToken(ResultSet resultSet) throws SQLException {
@@ -1,5 +1,7 @@
 package com.manning.apisecurityinaction.token;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.nimbusds.jose.EncryptionMethod;
 import com.nimbusds.jose.JOSEException;
 import com.nimbusds.jose.JWEAlgorithm;
@@ -9,21 +11,41 @@ import com.nimbusds.jose.crypto.DirectEncrypter;
 import com.nimbusds.jwt.EncryptedJWT;
 import com.nimbusds.jwt.JWTClaimsSet;
 import javax.crypto.SecretKey;
+import org.json.JSONObject;
 import spark.Request;
 
 import java.text.ParseException;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
 
-public class EncryptedJwtToeknStore implements TokenStore {
+public class EncryptedJwtToeknStore implements SecureTokenStore {
 
-    private final SecretKey secretKey;
-    private final DatabaseTokenStore tokenAllowList;
+    private static final String AUDIENCE = "https://localhost:4567";
 
-    public EncryptedJwtToeknStore(final SecretKey secretKey, final DatabaseTokenStore tokenAllowList) {
-        this.secretKey = secretKey;
+    private final DirectEncrypter encrypter;
+    private final DirectDecrypter decrypter;
+    private final SecureTokenStore tokenAllowList;
+    private final Cache<String, Token> verified = CacheBuilder.newBuilder()
+            .maximumSize(Long.getLong("natter.jwt.cache.size", 100_000))
+            .expireAfterWrite(Duration.ofMinutes(Long.getLong("natter.jwt.cache.ttlMinutes", 10)))
+            .recordStats()
+            .build();
+    private final LongAdder decryptCount = new LongAdder();
+    private final LongAdder decryptNanos = new LongAdder();
+
+    public EncryptedJwtToeknStore(final SecretKey secretKey, final SecureTokenStore tokenAllowList) {
+        try {
+            // Both are thread-safe, so the key schedule is done once and shared by all requests
+            this.encrypter = new DirectEncrypter(secretKey);
+            this.decrypter = new DirectDecrypter(secretKey);
+        } catch (JOSEException e) {
+            throw new IllegalArgumentException(e);
+        }
         this.tokenAllowList = tokenAllowList;
     }
 
@@ -34,7 +56,7 @@ public class EncryptedJwtToeknStore implements TokenStore {
         final var claimsBuilder = new JWTClaimsSet.Builder()
                 .jwtID(jwtId)
                 .subject(token.getUsername())
-                .audience("https://localhost:4567")
+                .audience(AUDIENCE)
                 .expirationTime(Date.from(token.getExpiry()));
         token.getAttributes().forEach(claimsBuilder::claim);
 
@@ -42,7 +64,6 @@ public class EncryptedJwtToeknStore implements TokenStore {
         final var jwt = new EncryptedJWT(header, claimsBuilder.build());
 
         try {
-            final var encrypter = new DirectEncrypter(this.secretKey);
             jwt.encrypt(encrypter);
         } catch (JOSEException e) {
             throw new RuntimeException(e);
@@ -53,14 +74,73 @@ public class EncryptedJwtToeknStore implements TokenStore {
 
     @Override
     public Optional<Token> read(final Request request, final String tokenId) {
+        final var key = cacheKey(tokenId);
+        var token = verified.getIfPresent(key);
+        if (token == null || !Instant.now().isBefore(token.getExpiry())) {
+            try {
+                token = decrypt(tokenId);
+            } catch (ParseException | JOSEException e) {
+                return Optional.empty();
+            }
+            if (token == null) {
+                return Optional.empty();
+            }
+            // Guava has no per-entry expiry, so an already expired token is just not cached
+            if (Instant.now().isBefore(token.getExpiry())) {
+                verified.put(key, token);
+            } else {
+                verified.invalidate(key);
+            }
+        }
+
+        final var jwtId = token.getAttributes().get("jti");
+        if (jwtId == null || tokenAllowList.read(request, jwtId).isEmpty()) {
+            return Optional.empty();
+        }
+
+        return Optional.of(token);
+    }
+
+    @Override
+    public void revoke(final Request request, final String tokenId) {
+        final var key = cacheKey(tokenId);
+        var token = verified.getIfPresent(key);
+        verified.invalidate(key);
+        try {
+            if (token == null) {
+                token = decrypt(tokenId);
+            }
+        } catch (ParseException | JOSEException e) {
+            throw new IllegalArgumentException("Invalid token", e);
+        }
+        if (token == null || token.getAttributes().get("jti") == null) {
+            throw new IllegalArgumentException("Invalid token");
+        }
+
+        tokenAllowList.revoke(request, token.getAttributes().get("jti"));
+    }
+
+    public JSONObject stats() {
+        final var stats = verified.stats();
+        final var decrypts = decryptCount.sum();
+        return new JSONObject()
+                .put("size", verified.size())
+                .put("hitRate", stats.hitRate())
+                .put("hits", stats.hitCount())
+                .put("misses", stats.missCount())
+                .put("decrypts", decrypts)
+                .put("meanDecryptMicros", decrypts == 0 ? 0.0 : decryptNanos.sum() / (double) decrypts / 1_000);
+    }
+
+    private Token decrypt(final String tokenId) throws ParseException, JOSEException {
+        final var start = System.nanoTime();
         try {
             final var jwt = EncryptedJWT.parse(tokenId);
-            final var decryptor = new DirectDecrypter(this.secretKey);
-            jwt.decrypt(decryptor);
+            jwt.decrypt(decrypter);
 
             final var claims = jwt.getJWTClaimsSet();
-            if (!claims.getAudience().contains("http://localhost:4567")) {
-                return Optional.empty();
+            if (!claims.getAudience().contains(AUDIENCE)) {
+                return null;
             }
 
             final var expiry = claims.getExpirationTime().toInstant();
@@ -76,23 +156,14 @@ public class EncryptedJwtToeknStore implements TokenStore {
             }
             token.setAttributes(attrsMap);
 
-            return Optional.of(token);
-        } catch (ParseException | JOSEException e) {
-            return Optional.empty();
+            return token;
+        } finally {
+            decryptNanos.add(System.nanoTime() - start);
+            decryptCount.increment();
         }
     }
 
-    @Override
-    public void revoke(final Request request, final String tokenId) {
-        try {
-            final var jwt = EncryptedJWT.parse(tokenId);
-            final var decryptor = new DirectDecrypter(this.secretKey);
-            jwt.decrypt(decryptor);
-            final var claims = jwt.getJWTClaimsSet();
-
-            tokenAllowList.revoke(request, claims.getJWTID());
-        } catch (ParseException | JOSEException e) {
-            throw new IllegalArgumentException("Invalid token", e);
-        }
+    private static String cacheKey(final String tokenId) {
+        return Base64URL.encode(CookieTokenStore.sha256(tokenId));
     }
 }
@@ -12,11 +12,20 @@ import java.util.Optional;
 public class HmacTokenStore implements SecureTokenStore {
 
     private final TokenStore delegate;
-    private final Key macKey;
+    private final ObjectPool<Mac> macs;
 
     private HmacTokenStore(final TokenStore delegate, final Key macKey) {
         this.delegate = delegate;
-        this.macKey = macKey;
+        this.macs = new ObjectPool<>(() -> {
+            try {
+                final var mac = Mac.getInstance(macKey.getAlgorithm());
+                mac.init(macKey);
+
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new RuntimeException(e);
+            }
+        }, Runtime.getRuntime().availableProcessors() * 4);
     }
 
     public static SecureTokenStore wrap(ConfidentialTokenStore store, Key macKey) {
@@ -37,6 +46,15 @@ public class HmacTokenStore implements SecureTokenStore {
 
     @Override
     public Optional<Token> read(final Request request, final String tokenId) {
+        return verify(tokenId).flatMap(realTokenId -> delegate.read(request, realTokenId));
+    }
+
+    @Override
+    public void revoke(final Request request, final String tokenId) {
+        verify(tokenId).ifPresent(realTokenId -> delegate.revoke(request, realTokenId));
+    }
+
+    private Optional<String> verify(final String tokenId) {
         final var index = tokenId.lastIndexOf(".");
         if (index == -1) {
             return Optional.empty();
@@ -49,22 +67,10 @@ public class HmacTokenStore implements SecureTokenStore {
             return Optional.empty();
         }
 
-        return delegate.read(request, realTokenId);
-    }
-
-    @Override
-    public void revoke(final Request request, final String tokenId) {
-
+        return Optional.of(realTokenId);
     }
 
     private byte[] hmac(String tokenId) {
-        try {
-            final var mac = Mac.getInstance(macKey.getAlgorithm());
-            mac.init(macKey);
-
-            return mac.doFinal(tokenId.getBytes(StandardCharsets.UTF_8));
-        } catch (GeneralSecurityException e) {
-            throw new RuntimeException(e);
-        }
+        return macs.apply(mac -> mac.doFinal(tokenId.getBytes(StandardCharsets.UTF_8)));
     }
 }
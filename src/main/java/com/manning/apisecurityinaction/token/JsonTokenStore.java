@@ -5,16 +5,29 @@ import org.json.JSONObject;
 import spark.Request;
 
 import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
 import java.time.Instant;
 import java.util.HashMap;
 import java.util.Optional;
 
 public class JsonTokenStore implements TokenStore {
+
+    private final RevocationList revocationList;
+    private final SecureRandom secureRandom = new SecureRandom();
+
+    public JsonTokenStore(final RevocationList revocationList) {
+        this.revocationList = revocationList;
+    }
+
     @Override
     public String create(final Request request, final Token token) {
+        final var jwtId = new byte[16];
+        secureRandom.nextBytes(jwtId);
+
         final var json = new JSONObject();
+        json.put("jti", Base64URL.encode(jwtId));
         json.put("sub", token.getUsername());
-        json.put("exp", token.getExpiry());
+        json.put("exp", token.getExpiry().getEpochSecond());
         json.put("attrs", token.getAttributes());
 
         final var jsonBytes = json.toString().getBytes(StandardCharsets.UTF_8);
@@ -26,7 +39,11 @@ public class JsonTokenStore implements TokenStore {
         try {
             final var decoded = Base64URL.decode(tokenId);
             final var json = new JSONObject(new String(decoded, StandardCharsets.UTF_8));
-            final var expiry = Instant.ofEpochSecond(json.getInt("exp"));
+            final var expiry = Instant.ofEpochSecond(json.getLong("exp"));
+            final var jwtId = json.optString("jti", null);
+            if (jwtId != null && revocationList.isRevoked(jwtId, expiry)) {
+                return Optional.empty();
+            }
             final var username = json.getString("sub");
             final var attrs = json.getJSONObject("attrs");
 
@@ -45,6 +62,11 @@ public class JsonTokenStore implements TokenStore {
 
     @Override
     public void revoke(final Request request, final String tokenId) {
-
+        try {
+            final var json = new JSONObject(new String(Base64URL.decode(tokenId), StandardCharsets.UTF_8));
+            revocationList.revoke(json.getString("jti"), Instant.ofEpochSecond(json.getLong("exp")));
+        } catch (JSONException e) {
+            throw new IllegalArgumentException("Invalid token", e);
+        }
     }
 }
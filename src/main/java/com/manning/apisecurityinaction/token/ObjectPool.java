@@ -0,0 +1,44 @@
+package com.manning.apisecurityinaction.token;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * A small unbounded-borrow, bounded-retain pool for objects such as {@link javax.crypto.Mac} and
+ * {@link java.security.MessageDigest} that are expensive to look up and initialise but not
+ * thread-safe. Unlike a {@link ThreadLocal} it does not keep one instance per thread, which
+ * matters when requests run on many short-lived threads.
+ */
+class ObjectPool<T> {
+
+    private final Supplier<T> factory;
+    private final int maxIdle;
+    private final ConcurrentLinkedQueue<T> idle = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    ObjectPool(final Supplier<T> factory, final int maxIdle) {
+        this.factory = factory;
+        this.maxIdle = maxIdle;
+    }
+
+    <R> R apply(final Function<T, R> operation) {
+        var instance = idle.poll();
+        if (instance == null) {
+            instance = factory.get();
+        } else {
+            idleCount.decrementAndGet();
+        }
+
+        try {
+            return operation.apply(instance);
+        } finally {
+            if (idleCount.incrementAndGet() <= maxIdle) {
+                idle.offer(instance);
+            } else {
+                idleCount.decrementAndGet();
+            }
+        }
+    }
+}
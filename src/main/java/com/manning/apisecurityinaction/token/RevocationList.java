@@ -0,0 +1,153 @@
+package com.manning.apisecurityinaction.token;
+
+import org.json.JSONObject;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Revoked token IDs for stateless token stores. IDs are grouped into buckets by the expiry
+ * of the token they belong to, held in a ring that spans the maximum token lifetime. A bucket
+ * is overwritten once its tokens have all expired, so entries disappear without a sweep, and
+ * a lookup touches exactly one bucket. Revocations can optionally be appended to a file and
+ * replayed at startup.
+ */
+public class RevocationList {
+
+    private final long bucketSeconds;
+    private final AtomicReferenceArray<Bucket> ring;
+    private final Map<String, Instant> overflow = new ConcurrentHashMap<>();
+    private final Path journal;
+
+    public RevocationList(final Duration maxTokenLifetime, final Duration bucketWidth, final Path journal) {
+        this.bucketSeconds = bucketWidth.getSeconds();
+        this.ring = new AtomicReferenceArray<>((int) (maxTokenLifetime.getSeconds() / bucketSeconds) + 2);
+        this.journal = journal;
+        if (journal != null) {
+            replay();
+        }
+    }
+
+    public static RevocationList fromSystemProperties() {
+        final var journal = System.getProperty("natter.revocation.file");
+        return new RevocationList(
+                Duration.ofMinutes(Long.getLong("natter.revocation.maxLifetimeMinutes", 24 * 60)),
+                Duration.ofSeconds(Long.getLong("natter.revocation.bucketSeconds", 60)),
+                journal == null ? null : Path.of(journal));
+    }
+
+    public void revoke(final String tokenId, final Instant expiry) {
+        if (!add(tokenId, expiry)) {
+            return;
+        }
+
+        if (journal != null) {
+            append(tokenId, expiry);
+        }
+    }
+
+    public boolean isRevoked(final String tokenId, final Instant expiry) {
+        final var bucketId = Math.floorDiv(expiry.getEpochSecond(), bucketSeconds);
+        final var bucket = ring.get(slot(bucketId));
+        if (bucket != null && bucket.id == bucketId && bucket.tokenIds.contains(tokenId)) {
+            return true;
+        }
+
+        return !overflow.isEmpty() && overflow.containsKey(tokenId);
+    }
+
+    public JSONObject stats() {
+        var revoked = 0L;
+        for (var i = 0; i < ring.length(); i++) {
+            final var bucket = ring.get(i);
+            if (bucket != null) {
+                revoked += bucket.tokenIds.size();
+            }
+        }
+        final var now = Instant.now();
+        final var live = overflow.values().stream().filter(expiry -> !expiry.isBefore(now)).count();
+
+        return new JSONObject()
+                .put("revoked", revoked + live)
+                .put("overflow", live);
+    }
+
+    private boolean add(final String tokenId, final Instant expiry) {
+        final var now = Instant.now();
+        if (expiry.isBefore(now)) {
+            return false;
+        }
+
+        final var bucketId = Math.floorDiv(expiry.getEpochSecond(), bucketSeconds);
+        final var horizon = Math.floorDiv(now.getEpochSecond(), bucketSeconds) + ring.length() - 1;
+        if (bucketId >= horizon) {
+            // Overflow only grows here, so pruning on insert keeps it to unexpired entries
+            overflow.values().removeIf(existing -> existing.isBefore(now));
+            overflow.put(tokenId, expiry);
+            return true;
+        }
+
+        final var slot = slot(bucketId);
+        while (true) {
+            final var bucket = ring.get(slot);
+            if (bucket != null && bucket.id == bucketId) {
+                bucket.tokenIds.add(tokenId);
+                return true;
+            }
+            ring.compareAndSet(slot, bucket, new Bucket(bucketId));
+        }
+    }
+
+    private int slot(final long bucketId) {
+        return (int) Math.floorMod(bucketId, (long) ring.length());
+    }
+
+    private synchronized void append(final String tokenId, final Instant expiry) {
+        try (BufferedWriter out = Files.newBufferedWriter(journal, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            out.write(tokenId + " " + expiry.getEpochSecond());
+            out.newLine();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void replay() {
+        if (!Files.exists(journal)) {
+            return;
+        }
+
+        try {
+            final var live = new StringBuilder();
+            for (final String line : Files.readAllLines(journal, StandardCharsets.UTF_8)) {
+                final var parts = line.split(" ", 2);
+                if (parts.length == 2 && add(parts[0], Instant.ofEpochSecond(Long.parseLong(parts[1])))) {
+                    live.append(line).append('\n');
+                }
+            }
+            Files.writeString(journal, live, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static class Bucket {
+        private final long id;
+        private final Set<String> tokenIds = ConcurrentHashMap.newKeySet();
+
+        private Bucket(final long id) {
+            this.id = id;
+        }
+    }
+}
@@ -9,6 +9,7 @@ import com.nimbusds.jwt.JWTClaimsSet;
 import com.nimbusds.jwt.SignedJWT;
 import spark.Request;
 
+import java.security.SecureRandom;
 import java.sql.Date;
 import java.text.ParseException;
 import java.util.HashMap;
@@ -19,17 +20,24 @@ public class SignedJwtTokenStore implements AuthenticatedTokenStore {
     private final JWSVerifier verifier;
     private final JWSAlgorithm algorithm;
     private final String audience;
+    private final RevocationList revocationList;
+    private final SecureRandom secureRandom = new SecureRandom();
 
-    public SignedJwtTokenStore(final JWSSigner signer, final JWSVerifier verifier, final JWSAlgorithm algorithm, final String audience) {
+    public SignedJwtTokenStore(final JWSSigner signer, final JWSVerifier verifier, final JWSAlgorithm algorithm,
+                               final String audience, final RevocationList revocationList) {
         this.signer = signer;
         this.verifier = verifier;
         this.algorithm = algorithm;
         this.audience = audience;
+        this.revocationList = revocationList;
     }
 
     @Override
     public String create(final Request request, final Token token) {
+        final var jwtId = new byte[16];
+        secureRandom.nextBytes(jwtId);
         final var claimSet = new JWTClaimsSet.Builder()
+                .jwtID(Base64URL.encode(jwtId))
                 .subject(token.getUsername())
                 .audience(this.audience)
                 .expirationTime(Date.from(token.getExpiry()))
@@ -49,17 +57,12 @@ public class SignedJwtTokenStore implements AuthenticatedTokenStore {
     @Override
     public Optional<Token> read(final Request request, final String tokenId) {
         try {
-            final var jwt = SignedJWT.parse(tokenId);
-            if (!jwt.verify(this.verifier)) {
-                throw new JOSEException("Invalid signature");
-            }
-
-            final var claims = jwt.getJWTClaimsSet();
-            if (!claims.getAudience().contains(this.audience)) {
-                throw new JOSEException("Incorrect audience");
+            final var claims = verify(tokenId);
+            final var expiry = claims.getExpirationTime().toInstant();
+            if (claims.getJWTID() != null && revocationList.isRevoked(claims.getJWTID(), expiry)) {
+                return Optional.empty();
             }
 
-            final var expiry = claims.getExpirationTime().toInstant();
             final var subject = claims.getSubject();
             final var token = new Token(expiry, subject);
             final var attrs = claims.getJSONObjectClaim("attrs");
@@ -75,6 +78,28 @@ public class SignedJwtTokenStore implements AuthenticatedTokenStore {
 
     @Override
     public void revoke(final Request request, final String tokenId) {
+        try {
+            final var claims = verify(tokenId);
+            if (claims.getJWTID() == null) {
+                throw new IllegalArgumentException("Token cannot be revoked");
+            }
+            revocationList.revoke(claims.getJWTID(), claims.getExpirationTime().toInstant());
+        } catch (ParseException | JOSEException e) {
+            throw new IllegalArgumentException("Invalid token", e);
+        }
+    }
+
+    private JWTClaimsSet verify(final String tokenId) throws ParseException, JOSEException {
+        final var jwt = SignedJWT.parse(tokenId);
+        if (!jwt.verify(this.verifier)) {
+            throw new JOSEException("Invalid signature");
+        }
+
+        final var claims = jwt.getJWTClaimsSet();
+        if (!claims.getAudience().contains(this.audience)) {
+            throw new JOSEException("Incorrect audience");
+        }
 
+        return claims;
     }
 }
@@ -30,15 +30,7 @@ CREATE TABLE users
     pw_hash VARCHAR(255) NOT NULL
 );
 
-CREATE TABLE audit_log
-(
-    audit_id   INT          NOT NULL,
-    method     VARCHAR(10)  NOT NULL,
-    path       VARCHAR(100) NOT NULL,
-    user_id    VARCHAR(30)  NULL,
-    status     INT          NULL,
-    audit_time TIMESTAMP    NOT NULL
-);
+-- audit rows live in per-day audit_log_yyyyMMdd tables created by AuditPartitions
 CREATE SEQUENCE audit_id_seq;
 
 CREATE TABLE permissions
@@ -50,9 +42,10 @@ CREATE TABLE permissions
 );
 
 CREATE INDEX msg_timestamp_idx ON messages (msg_time);
+CREATE INDEX msg_space_time_idx ON messages (space_id, msg_time, msg_id);
 CREATE UNIQUE INDEX space_name_idx ON spaces (name);
 CREATE INDEX expired_token_idx ON tokens(expiry);
 
 CREATE USER natter_api_user PASSWORD 'password';
-GRANT SELECT, INSERT ON spaces, messages, users, audit_log, permissions, tokens TO natter_api_user;
-GRANT DELETE ON messages TO natter_api_user;
+GRANT SELECT, INSERT ON spaces, messages, users, permissions, tokens TO natter_api_user;
+GRANT DELETE ON messages, tokens TO natter_api_user;
@@ -0,0 +1,53 @@
+package com.manning.apisecurityinaction.token;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HmacTokenStoreTest {
+
+    private SecureTokenStore tokenStore;
+
+    @BeforeEach
+    void setUp() {
+        final var keyBytes = new byte[32];
+        new SecureRandom().nextBytes(keyBytes);
+        final var revocationList = new RevocationList(Duration.ofDays(1), Duration.ofMinutes(1), null);
+        tokenStore = HmacTokenStore.wrap(new JsonTokenStore(revocationList),
+                new SecretKeySpec(keyBytes, "HmacSHA256"));
+    }
+
+    @Test
+    void revokedJsonTokenNoLongerReads() {
+        final var tokenId = tokenStore.create(null, newToken());
+        assertTrue(tokenStore.read(null, tokenId).isPresent());
+
+        tokenStore.revoke(null, tokenId);
+
+        assertFalse(tokenStore.read(null, tokenId).isPresent());
+    }
+
+    @Test
+    void revokeWithBadTagLeavesTokenValid() {
+        final var tokenId = tokenStore.create(null, newToken());
+        final var other = tokenStore.create(null, newToken());
+        final var forged = tokenId.substring(0, tokenId.lastIndexOf('.'))
+                + other.substring(other.lastIndexOf('.'));
+
+        tokenStore.revoke(null, forged);
+
+        assertTrue(tokenStore.read(null, tokenId).isPresent());
+    }
+
+    private static TokenStore.Token newToken() {
+        return new TokenStore.Token(Instant.now().plus(10, ChronoUnit.MINUTES), "test");
+    }
+}